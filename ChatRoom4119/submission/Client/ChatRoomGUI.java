@@ -37,8 +37,13 @@ public class ChatRoomGUI extends JFrame {
 	public ChatRoomGUI(Client client) {
 		this.client = client;
 		initComponents();// initialize all the GUI components
+		this.messageReceiver = client.getMessageReceiver();
+		this.messageReceiver.registerServerUUID();
 		// start the receiver thread to receive messages from the server.
 		new Receiver().start();
+		// messages pushed thru the persistent session are displayed here.
+		client.setChatRoomGUI(this);
+		client.openSession();
 		display("[System]  Welcome to Chat Room 4009!");
 		// send an online request to get the initial online list.
 		client.sendToServer(Protocol.CHECKONLINE);
@@ -49,8 +54,6 @@ public class ChatRoomGUI extends JFrame {
 	 */
 	class Receiver extends Thread {
 		public void run() {
-			messageReceiver = client.getMessageReceiver();
-			messageReceiver.registerServerUUID();
 			while (true) {
 				try {
 					String line = messageReceiver.receiveMsg();
@@ -104,6 +107,13 @@ public class ChatRoomGUI extends JFrame {
 			msgToCliOut = "[To You][Thru Server]  " + pointedMsgComponents[1]
 					+ ": " + pointedMsgComponents[2];
 			break;
+		case (Protocol.OFFLINEBATCH):
+			// one "402 sender message" per line after the batch header.
+			String[] entries = line.split("\n");
+			for (int i = 1; i < entries.length; i++) {
+				this.processServerMsg(entries[i]);
+			}
+			break;
 		case (Protocol.ONLINELIST):
 			String[] onlineUsers = line.substring(5, line.length() - 1).split(
 					", ");
@@ -1,4 +1,8 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.InputStreamReader;
@@ -50,6 +54,13 @@ public class Client {
 	private MessageReceiver messageReceiver; // MessageReceiver object to deal
 												// with accepted socket and
 												// incoming messages.
+	private ChatRoomGUI chatRoomGUI = null; // the chat room window in GUI
+											// mode, null in CLI mode.
+
+	// The persistent session to the server. Both are null when the client
+	// works in one-shot mode.
+	private Socket sessionSocket = null;
+	private DataOutputStream sessionOut = null;
 
 	// Key sets that are used to perform synchronized I/O for Multi-Thread
 	// program.
@@ -101,6 +112,11 @@ public class Client {
 						ClientConfig.HEATBEATER_ON = true;
 					else
 						ClientConfig.HEATBEATER_ON = false;
+				} else if (tokens[0].equals("PERSISTENT_SESSION")) {
+					if (tokens[2].equals("true"))
+						ClientConfig.PERSISTENT_SESSION = true;
+					else
+						ClientConfig.PERSISTENT_SESSION = false;
 				} else if (tokens[0].equals("launchGUI")) {
 					if (tokens[2].equals("true"))
 						ClientConfig.launchGUI = true;
@@ -123,6 +139,17 @@ public class Client {
 		return this.messageReceiver;
 	}
 
+	/**
+	 * Register the chat room window, so that messages pushed thru the
+	 * persistent session are displayed on it.
+	 * 
+	 * @param chatRoomGUI
+	 *            the chat room window.
+	 */
+	public void setChatRoomGUI(ChatRoomGUI chatRoomGUI) {
+		this.chatRoomGUI = chatRoomGUI;
+	}
+
 	/**
 	 * Register the uuid and hostname for further P2P message exchange.
 	 * 
@@ -162,6 +189,7 @@ public class Client {
 			return;
 		}
 		messageReceiver.start();
+		this.openSession();
 		if (ClientConfig.HEATBEATER_ON) {
 			this.heartBeater = new HeartBeater(this);
 			this.heartBeater.start();
@@ -268,6 +296,92 @@ public class Client {
 		return 0;
 	}
 
+	/**
+	 * Set up the persistent session to the server after logging in. The
+	 * session carries all the following requests, replies and pushed messages
+	 * in frames. If it is turned off or fails to be set up, the client stays
+	 * in one-shot mode.
+	 * 
+	 * @return true if the session is set up; false otherwise.
+	 */
+	public boolean openSession() {
+		if (!ClientConfig.PERSISTENT_SESSION || this.uuid == null) {
+			return false;
+		}
+		Socket sk = new Socket();
+		try {
+			sk.connect(this.serverAddress);
+			sk.setSoTimeout(2000);
+			PrintWriter pw = new PrintWriter(new OutputStreamWriter(
+					sk.getOutputStream()), true);
+			pw.println(this.uuid.toString() + " " + Protocol.SESSION);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					sk.getInputStream()));
+			// wait for the acknowledgement before sending any frame.
+			String ack = Frame.read(in);
+			if (!ack.equals(this.uuid.toString() + " "
+					+ Protocol.SESSIONACCEPTED)) {
+				sk.close();
+				return false;
+			}
+			sk.setSoTimeout(0);
+			synchronized (this.sendToServerKey) {
+				this.sessionSocket = sk;
+				this.sessionOut = new DataOutputStream(
+						new BufferedOutputStream(sk.getOutputStream()));
+			}
+			new SessionReceiver(this, sk, in).start();
+			return true;
+		} catch (Exception e) {
+			try {
+				sk.close();
+			} catch (Exception e2) {
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Close the persistent session if it is still the current one. The
+	 * client falls back to one-shot mode.
+	 * 
+	 * @param sk
+	 *            the session socket which is ended.
+	 */
+	public void closeSession(Socket sk) {
+		synchronized (this.sendToServerKey) {
+			if (this.sessionSocket == sk) {
+				this.closeSessionSocket();
+			}
+		}
+	}
+
+	private void closeSessionSocket() {
+		if (this.sessionSocket != null) {
+			try {
+				this.sessionSocket.close();
+			} catch (Exception e) {
+			}
+		}
+		this.sessionSocket = null;
+		this.sessionOut = null;
+	}
+
+	/**
+	 * Dispatch a message line received from the persistent session in the
+	 * same way as those accepted on the receiving port.
+	 * 
+	 * @param line
+	 *            the raw message.
+	 */
+	public void dispatchSessionMsg(String line) throws Exception {
+		if (this.chatRoomGUI != null) {
+			this.chatRoomGUI.processReceivedMsg(line);
+		} else {
+			this.messageReceiver.handleMsg(line);
+		}
+	}
+
 	/**
 	 * Add commands for extra tasks. For example when the user's ip is
 	 * requested, the input "Y" and "N" should be identified to reply the
@@ -439,6 +553,9 @@ public class Client {
 	 */
 	public void sendToServer(String msgToServer) {
 		synchronized (this.sendToServerKey) {
+			if (this.sendThruSession(msgToServer)) {
+				return;
+			}
 			try {
 				Socket sk = new Socket();
 				sk.connect(this.serverAddress);
@@ -456,6 +573,30 @@ public class Client {
 		}
 	}
 
+	/**
+	 * Send a message in a frame thru the persistent session. If the session
+	 * is broken, it will be closed.
+	 * 
+	 * @param msgToServer
+	 *            the message to be sent.
+	 * @return true if the message is sent; false if there is no session.
+	 */
+	private boolean sendThruSession(String msgToServer) {
+		synchronized (this.sendToServerKey) {
+			if (this.sessionOut == null) {
+				return false;
+			}
+			try {
+				Frame.write(this.sessionOut, this.uuid.toString() + " "
+						+ msgToServer);
+				return true;
+			} catch (Exception e) {
+				this.closeSessionSocket();
+				return false;
+			}
+		}
+	}
+
 	/**
 	 * Method to send P2P message to another user
 	 * 
@@ -555,6 +696,11 @@ public class Client {
 			if (userName != null) {
 				try {
 					receiverSocket.close();
+					if (sendThruSession(Protocol.LOGOUT)) {
+						closeSession(sessionSocket);
+						System.out.println("\n>Logged out. Bye~");
+						return;
+					}
 					Socket sk = new Socket();
 					sk.connect(serverAddress);
 					PrintWriter pr = new PrintWriter(new OutputStreamWriter(
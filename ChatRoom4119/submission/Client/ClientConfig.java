@@ -7,6 +7,11 @@ public class ClientConfig {
 																// the serever.
 																// The server's
 																// username.
+	public static boolean PERSISTENT_SESSION = true; // whether to keep one
+														// session to the
+														// server instead of
+														// connecting per
+														// message.
 	public static boolean launchGUI = false;
 
 	public static String help_cli = "\nCommand                      Function\n"
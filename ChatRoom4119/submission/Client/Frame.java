@@ -0,0 +1,53 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Codec of the length-framed messages exchanged on a persistent session.
+ * Each frame is a 4-byte big-endian length followed by the UTF-8 bytes of
+ * one message line ("UUID message"), so one socket can carry any number of
+ * requests, replies and pushed messages in both directions.
+ * 
+ * @author Chao Chen cc3736
+ *
+ */
+public class Frame {
+	// A frame longer than this is regarded as a broken stream.
+	public static final int MAX_LENGTH = 64 * 1024;
+
+	/**
+	 * Write one message as a frame and flush it.
+	 * 
+	 * @param out
+	 *            the session output stream.
+	 * @param msg
+	 *            the message line.
+	 * @throws IOException
+	 */
+	public static void write(DataOutputStream out, String msg)
+			throws IOException {
+		byte[] data = msg.getBytes("UTF-8");
+		out.writeInt(data.length);
+		out.write(data);
+		out.flush();
+	}
+
+	/**
+	 * Block until one whole frame is read.
+	 * 
+	 * @param in
+	 *            the session input stream.
+	 * @return the message line carried by the frame.
+	 * @throws IOException
+	 *             if the stream is closed or the frame is malformed.
+	 */
+	public static String read(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_LENGTH) {
+			throw new IOException("Invalid frame length: " + length);
+		}
+		byte[] data = new byte[length];
+		in.readFully(data);
+		return new String(data, "UTF-8");
+	}
+}
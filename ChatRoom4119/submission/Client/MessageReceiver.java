@@ -53,12 +53,7 @@ public class MessageReceiver extends Thread {
 		while (true) {
 			try {
 				String received = receiveMsg();
-				String toCliOut = processMsg(received);
-				if (toCliOut != null) {
-					cliOut.println(toCliOut);
-					cliOut.print(">");
-					cliOut.flush();
-				}
+				handleMsg(received);
 			} catch (Exception e) {
 				// if the socket is closed, the program is closed.
 				// System.exit(0) will invoke
@@ -69,6 +64,22 @@ public class MessageReceiver extends Thread {
 
 	}
 
+	/**
+	 * Process a raw message and display the information on CLI.
+	 * 
+	 * @param received
+	 *            the raw message from the socket or the persistent session.
+	 * @throws Exception
+	 */
+	public void handleMsg(String received) throws Exception {
+		String toCliOut = processMsg(received);
+		if (toCliOut != null) {
+			cliOut.println(toCliOut);
+			cliOut.print(">");
+			cliOut.flush();
+		}
+	}
+
 	public void addToUUIDMap(UUID uuid, String name) {
 		synchronized (this.uuidMapKey) {
 			this.uuidMap.put(uuid, name);
@@ -95,7 +106,9 @@ public class MessageReceiver extends Thread {
 	}
 
 	/**
-	 * A method to accept a connection, read a message and close the socket
+	 * A method to accept a connection, read a message and close the socket.
+	 * A batch of offline messages spans the number of lines given in its
+	 * header; they are joined with '\n'.
 	 * 
 	 * @return the message read from one socket.
 	 * @throws Exception
@@ -109,6 +122,18 @@ public class MessageReceiver extends Thread {
 			BufferedReader socketIn = new BufferedReader(new InputStreamReader(
 					connectionSocket.getInputStream()));
 			line = socketIn.readLine();
+			String[] header = line == null ? new String[0] : line.split(" ", 3);
+			if (header.length == 3
+					&& header[1].equals("" + Protocol.OFFLINEBATCH)) {
+				int count = Integer.valueOf(header[2]);
+				for (int i = 0; i < count; i++) {
+					String entry = socketIn.readLine();
+					if (entry == null) {
+						break;
+					}
+					line += "\n" + entry;
+				}
+			}
 			socketIn.close();
 		}
 		connectionSocket.close();
@@ -164,6 +189,18 @@ public class MessageReceiver extends Thread {
 			String[] tmp4 = line.split(" ", 3);
 			msgToCliOut = tmp4[1] + ": " + tmp4[2];
 			break;
+		case (Protocol.OFFLINEBATCH):
+			// one "402 sender message" per line after the batch header.
+			String[] entries = line.split("\n");
+			msgToCliOut = "You have " + (entries.length - 1)
+					+ " offline messages:";
+			for (int i = 1; i < entries.length; i++) {
+				String entryToCliOut = processServerMsg(entries[i]);
+				if (entryToCliOut != null) {
+					msgToCliOut += "\n" + entryToCliOut;
+				}
+			}
+			break;
 		case (Protocol.ONLINELIST):
 			String[] onlineUsers = line.substring(5, line.length() - 1).split(", ");
 			if(onlineUsers.length==1){
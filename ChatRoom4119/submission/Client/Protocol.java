@@ -14,6 +14,7 @@ public class Protocol {
 	public static final int LOGINOTHERPLACE = 114;
 	public static final int WRONGCOMMAND = 115;
 	public static final int LOGINSUCCESS = 120;
+	public static final int SESSIONACCEPTED = 121; // first frame of a persistent session
 
 	//Block/Unblock related header.
 	public static final int BLOCKSUCCESS = 211; // 211 username
@@ -35,6 +36,7 @@ public class Protocol {
 
 	public static final int BROADCASTEDMSG = 401;// 401 sender message
 	public static final int POINTEDMSG = 402; // 402 sender message
+	public static final int OFFLINEBATCH = 403; // 403 count, then one "402 sender message" per line
 
 	//
 	// Message prefixes used from clients to the server.
@@ -50,5 +52,6 @@ public class Protocol {
 	public static final String ADDRREQDENY = "ADDRREQDENY"; // ADDRREQDENY requester
 	public static final String SENDMESSAGE = "MESSAGE"; // MESSAGE receiver message
 	public static final String HEARTBEAT = "ALIVE"; // ALIVE
+	public static final String SESSION = "SESSION"; // SESSION, switch the connection to framed mode
 
 }
@@ -0,0 +1,43 @@
+import java.io.DataInputStream;
+import java.net.Socket;
+
+/**
+ * A thread to read frames from the persistent session to the server and
+ * dispatch them. When the session is closed, the client falls back to
+ * one-shot mode.
+ * 
+ * @author Chao Chen cc3736
+ *
+ */
+public class SessionReceiver extends Thread {
+	private Client client;
+	private Socket sessionSocket;
+	private DataInputStream sessionIn;
+
+	public SessionReceiver(Client client, Socket sessionSocket,
+			DataInputStream sessionIn) {
+		this.client = client;
+		this.sessionSocket = sessionSocket;
+		this.sessionIn = sessionIn;
+		// the session should not keep the program alive.
+		this.setDaemon(true);
+	}
+
+	public void run() {
+		while (true) {
+			String line;
+			try {
+				line = Frame.read(this.sessionIn);
+			} catch (Exception e) {
+				// the session is closed by the server or broken.
+				client.closeSession(this.sessionSocket);
+				break;
+			}
+			try {
+				client.dispatchSessionMsg(line);
+			} catch (Exception e) {
+				// the message cannot be parsed, ignore it.
+			}
+		}
+	}
+}
@@ -0,0 +1,280 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The state of one non-blocking client connection. Reading and writing are
+ * done only by the owner ChannelIOThread; the decoded messages are handed to
+ * the SessionThread of the connection which runs on the worker pool, one
+ * message at a time and in order.
+ *
+ * @author Chao Chen cc3736
+ *
+ */
+public class ChannelConnection {
+	private SocketChannel channel;
+	private ChannelIOThread ioThread;
+	private SelectionKey key;
+	private ExecutorService workers;
+
+	// The processor of the messages read from this connection.
+	private SessionThread session;
+
+	// Bytes read from the channel but not decoded yet.
+	private ByteBuffer readBuffer = ByteBuffer.allocate(Frame.MAX_LENGTH + 4);
+
+	// The first message is a line. If it opens a persistent session, all the
+	// following messages are frames. Otherwise no more message is read.
+	private boolean firstLineRead = false;
+	private boolean frameMode = false;
+
+	// Decoded messages waiting for the session processor.
+	private ConcurrentLinkedQueue<String> inbound = new ConcurrentLinkedQueue<String>();
+	private AtomicBoolean scheduled = new AtomicBoolean(false);
+
+	// Set when the connection is closed, until the session processor takes
+	// it after the messages decoded before.
+	private AtomicBoolean closeNotice = new AtomicBoolean(false);
+
+	// Encoded messages waiting to be written to the channel.
+	private ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+	private volatile boolean closeAfterFlush = false;
+	private AtomicBoolean closed = new AtomicBoolean(false);
+
+	public ChannelConnection(SocketChannel channel, ChannelIOThread ioThread,
+			InfoCenter infoCenter, ExecutorService workers) {
+		this.channel = channel;
+		this.ioThread = ioThread;
+		this.workers = workers;
+		this.session = new SessionThread(this, infoCenter);
+	}
+
+	public SocketChannel getChannel() {
+		return this.channel;
+	}
+
+	public void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * IP address of the client.
+	 *
+	 * @return IP address as a string, i.e. "192.168.0.8"
+	 */
+	public String getRemoteIP() {
+		return this.channel.socket().getInetAddress().getHostAddress();
+	}
+
+	public boolean isOpen() {
+		return !this.closed.get();
+	}
+
+	/**
+	 * Read what is available and decode it. Invoked by the I/O thread when
+	 * the channel is readable.
+	 */
+	public void onReadable() {
+		try {
+			int n = this.channel.read(this.readBuffer);
+			if (n == -1) {
+				this.close();
+				return;
+			}
+			this.readBuffer.flip();
+			boolean decoded = false;
+			if (!this.firstLineRead) {
+				String line = Frame.decodeLine(this.readBuffer);
+				if (line != null) {
+					this.firstLineRead = true;
+					this.frameMode = Frame.isSessionRequest(line);
+					this.inbound.add(line);
+					decoded = true;
+				}
+			}
+			if (this.frameMode) {
+				String msg;
+				while ((msg = Frame.decode(this.readBuffer)) != null) {
+					this.inbound.add(msg);
+					decoded = true;
+				}
+			}
+			this.readBuffer.compact();
+			if (this.firstLineRead && !this.frameMode) {
+				// a one-shot connection carries only one message.
+				this.key.interestOps(this.key.interestOps()
+						& ~SelectionKey.OP_READ);
+			} else if (!decoded && !this.readBuffer.hasRemaining()) {
+				throw new IOException("Message too long.");
+			}
+			if (decoded) {
+				this.schedule();
+			}
+		} catch (Exception e) {
+			System.out
+					.println("[EXCEPTION] Error occurs when reading from a connection.");
+			this.close();
+		}
+	}
+
+	/**
+	 * Write the pending messages until the channel cannot take more. Invoked
+	 * by the I/O thread.
+	 */
+	public void flush() {
+		if (this.closed.get()) {
+			return;
+		}
+		try {
+			ByteBuffer bb;
+			while ((bb = this.outbound.peek()) != null) {
+				this.channel.write(bb);
+				if (bb.hasRemaining()) {
+					break;
+				}
+				this.outbound.poll();
+			}
+			if (this.outbound.isEmpty()) {
+				this.key.interestOps(this.key.interestOps()
+						& ~SelectionKey.OP_WRITE);
+				if (this.closeAfterFlush) {
+					this.close();
+				}
+			} else {
+				this.key.interestOps(this.key.interestOps()
+						| SelectionKey.OP_WRITE);
+			}
+		} catch (Exception e) {
+			this.close();
+		}
+	}
+
+	/**
+	 * Queue a message to be sent as a frame on the persistent session.
+	 *
+	 * @param msg
+	 *            the message line with the UUID header.
+	 * @return false if the connection is already closed.
+	 */
+	public boolean sendFrame(String msg) {
+		return this.send(Frame.encode(msg));
+	}
+
+	/**
+	 * Queue a line to be sent to a one-shot client, then close the
+	 * connection once it is written.
+	 *
+	 * @param line
+	 *            the reply line.
+	 */
+	public void replyAndClose(String line) {
+		this.send(Frame.encodeLine(line));
+		this.closeAfterFlush();
+	}
+
+	private boolean send(ByteBuffer bb) {
+		if (this.closed.get()) {
+			return false;
+		}
+		this.outbound.add(bb);
+		this.ioThread.requestFlush(this);
+		return true;
+	}
+
+	/**
+	 * Close the connection when all the pending messages are written.
+	 */
+	public void closeAfterFlush() {
+		this.closeAfterFlush = true;
+		this.ioThread.requestFlush(this);
+	}
+
+	/**
+	 * Close the connection at once. The session processor is notified in its
+	 * next round, so that it never runs twice at a time for the connection.
+	 */
+	public void close() {
+		if (!this.closed.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			this.channel.close();
+		} catch (Exception e) {
+		}
+		this.closeNotice.set(true);
+		this.schedule();
+	}
+
+	/**
+	 * Take the notice that the connection is closed. Used by the session
+	 * processor.
+	 *
+	 * @return true only once after the connection is closed.
+	 */
+	public boolean pollClosed() {
+		return this.closeNotice.getAndSet(false);
+	}
+
+	/**
+	 * Take out the messages that were queued but not wholly written. A
+	 * message written to the end but not yet taken off the queue by the I/O
+	 * thread is left out, so that it is not delivered twice.
+	 *
+	 * @return the message lines with the UUID header.
+	 */
+	public ArrayList<String> drainUnsent() {
+		ArrayList<String> msgs = new ArrayList<String>();
+		ByteBuffer bb;
+		while ((bb = this.outbound.poll()) != null) {
+			if (!bb.hasRemaining()) {
+				continue;
+			}
+			ByteBuffer whole = bb.duplicate();
+			whole.rewind();
+			try {
+				String msg = Frame.decode(whole);
+				if (msg != null) {
+					msgs.add(msg);
+				}
+			} catch (Exception e) {
+			}
+		}
+		return msgs;
+	}
+
+	/**
+	 * Take the next decoded message. Used by the session processor.
+	 *
+	 * @return the message; null if there is none.
+	 */
+	public String pollInbound() {
+		return this.inbound.poll();
+	}
+
+	/**
+	 * Hand the session processor to the worker pool unless it is already
+	 * scheduled.
+	 */
+	public void schedule() {
+		if (this.scheduled.compareAndSet(false, true)) {
+			this.workers.execute(this.session);
+		}
+	}
+
+	/**
+	 * Invoked by the session processor when it has drained the messages.
+	 *
+	 * @return true if new messages or the close notice arrived meanwhile and
+	 *         it should go on.
+	 */
+	public boolean finishRound() {
+		this.scheduled.set(false);
+		return (!this.inbound.isEmpty() || this.closeNotice.get())
+				&& this.scheduled.compareAndSet(false, true);
+	}
+}
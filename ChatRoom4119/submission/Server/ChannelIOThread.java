@@ -0,0 +1,94 @@
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * An I/O thread with its own selector. It serves the non-blocking
+ * connections assigned by the Server: reads and decodes messages, hands them
+ * to the worker pool and writes the queued replies.
+ *
+ * @author Chao Chen cc3736
+ *
+ */
+public class ChannelIOThread extends Thread {
+	private Selector selector;
+	private InfoCenter infoCenter;
+	private ExecutorService workers;
+
+	// Newly accepted channels to be registered on the selector.
+	private ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+
+	// Connections that have new messages to write.
+	private ConcurrentLinkedQueue<ChannelConnection> flushRequests = new ConcurrentLinkedQueue<ChannelConnection>();
+
+	public ChannelIOThread(InfoCenter infoCenter, ExecutorService workers)
+			throws Exception {
+		this.selector = Selector.open();
+		this.infoCenter = infoCenter;
+		this.workers = workers;
+	}
+
+	/**
+	 * Assign an accepted channel to this thread.
+	 *
+	 * @param channel
+	 *            the non-blocking channel.
+	 */
+	public void addChannel(SocketChannel channel) {
+		this.newChannels.add(channel);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Ask this thread to write the queued messages of a connection.
+	 *
+	 * @param connection
+	 */
+	public void requestFlush(ChannelConnection connection) {
+		this.flushRequests.add(connection);
+		this.selector.wakeup();
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				this.selector.select();
+				SocketChannel channel;
+				while ((channel = this.newChannels.poll()) != null) {
+					ChannelConnection connection = new ChannelConnection(
+							channel, this, this.infoCenter, this.workers);
+					connection.setKey(channel.register(this.selector,
+							SelectionKey.OP_READ, connection));
+				}
+				ChannelConnection toFlush;
+				while ((toFlush = this.flushRequests.poll()) != null) {
+					toFlush.flush();
+				}
+				Iterator<SelectionKey> it = this.selector.selectedKeys()
+						.iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					ChannelConnection connection = (ChannelConnection) key
+							.attachment();
+					if (!key.isValid()) {
+						connection.close();
+						continue;
+					}
+					if (key.isReadable()) {
+						connection.onReadable();
+					}
+					if (key.isValid() && key.isWritable()) {
+						connection.flush();
+					}
+				}
+			} catch (Exception e) {
+				System.out
+						.println("[EXCEPTION] Error occurs in the I/O thread.");
+			}
+		}
+	}
+}
@@ -4,6 +4,10 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.Date;
 import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A information cell datastructure to store the information of one logged-in user.
@@ -20,15 +24,29 @@ public class ClientInfoCell {
 	private String ipAddress;
 	private int cliRecPort;
 
-	// Record when the last messsage was received from the client.
-	private long lastLiveSignal = 0;
+	// Record when the last messsage was received from the client. Written
+	// on every message, so it is volatile rather than guarded by a lock.
+	private volatile long lastLiveSignal = 0;
 
 	// Identify header used to send message.
 	private UUID uuid;
 
+	// Persistent session of the client. null when the client works in
+	// one-shot mode or the session is closed.
+	private ChannelConnection session = null;
+
+	// Outbox of the messages fanned out to the user, drained by the writer
+	// threads of the FanOutEngine.
+	private LinkedBlockingQueue<String> outbox = new LinkedBlockingQueue<String>(
+			ServerConfig.OUTBOXSIZE);
+	private AtomicBoolean outboxScheduled = new AtomicBoolean(false);
+
+	// Metrics of the outbox: the highest depth seen and messages dropped.
+	private AtomicLong outboxMaxDepth = new AtomicLong(0);
+	private AtomicLong outboxDropped = new AtomicLong(0);
+
 	// Synchronize key used for multi-thread I/O.
 	private Object sendMsgKey = new Object();
-	private Object liveTimeKey = new Object();
 
 	public ClientInfoCell(InfoCenter infoCenter, String userName, UUID uuid, String ip, int cliRecPort) {
 		this.infoCenter = infoCenter;
@@ -49,32 +67,200 @@ public class ClientInfoCell {
 	}
 
 	/**
-	 * Method to send message to the user.
+	 * Bind a persistent session to the user. Messages will be sent thru it
+	 * until it is closed. A former session will be closed.
+	 * 
+	 * @param connection
+	 *            the session connection.
+	 */
+	public void attachSession(ChannelConnection connection) {
+		ChannelConnection former;
+		synchronized (this.sendMsgKey) {
+			former = this.session;
+			this.session = connection;
+		}
+		if (former != null) {
+			former.close();
+		}
+	}
+
+	/**
+	 * Unbind the session if it is still the current one of the user.
+	 * 
+	 * @param connection
+	 *            the session connection which is closed.
+	 */
+	public void detachSession(ChannelConnection connection) {
+		synchronized (this.sendMsgKey) {
+			if (this.session == connection) {
+				this.session = null;
+			}
+		}
+	}
+
+	/**
+	 * Close the persistent session if any, after the queued messages are
+	 * written. Invoked when the user is logged off or kicked out.
+	 */
+	public void closeSession() {
+		ChannelConnection former;
+		synchronized (this.sendMsgKey) {
+			former = this.session;
+			this.session = null;
+		}
+		if (former != null) {
+			former.closeAfterFlush();
+		}
+	}
+
+	/**
+	 * Method to send message to the user. The message is queued on the
+	 * persistent session if there is one, otherwise a new connection is set
+	 * up to the receiving port of the client. The connection is set up out
+	 * of the lock, so that a dead client does not hold up the other senders
+	 * to the user.
 	 * 
 	 * @param msg
 	 *            message to be sent.
 	 */
 	public void sendMsg(String msg) {
 		synchronized (this.sendMsgKey) {
-			try {
-				Socket sk = new Socket();
-				sk.setReuseAddress(true);
-				InetSocketAddress client = new InetSocketAddress(ipAddress,
-						cliRecPort);
-				sk.connect(client);
-				PrintWriter writer = new PrintWriter(new OutputStreamWriter(
-						sk.getOutputStream()), true);
-				writer.println(this.uuid.toString() + " " + msg);
-				writer.flush();
-				System.out.println("[MSG SENT][TO " + this.userName + "]: " + msg);
-				sk.close();
-			} catch (Exception e) {
-				System.out.println("[EXCEPTION] Cannot send message to host: "+this.userName);
-				if(msg.startsWith(""+Protocol.POINTEDMSG)){
-					this.infoCenter.addOfflineMsg(msg.split(" ",3)[1], this.userName, msg.split(" ",3)[2]);
+			if (this.session != null) {
+				if (this.session.sendFrame(this.uuid.toString() + " " + msg)) {
+					System.out.println("[MSG SENT][TO " + this.userName
+							+ "]: " + msg);
+					return;
 				}
+				this.session = null;
 			}
 		}
+		this.sendMsgOneShot(msg);
+	}
+
+	/**
+	 * Deliver again a message that was queued on a closed session. If the
+	 * user is no longer logged in, a pointed message is kept as an offline
+	 * message.
+	 * 
+	 * @param msg
+	 *            message without the UUID header.
+	 */
+	public void resendMsg(String msg) {
+		if (this.infoCenter.getUserHandler(this.userName) == this) {
+			this.sendMsg(msg);
+		} else {
+			this.keepOffline(msg);
+		}
+	}
+
+	/**
+	 * Store a message that cannot be delivered as an offline message. Only
+	 * pointed messages, alone or in a batch, are kept.
+	 * 
+	 * @param msg
+	 *            message without the UUID header.
+	 */
+	private void keepOffline(String msg) {
+		if (msg.startsWith("" + Protocol.OFFLINEBATCH)) {
+			String[] entries = msg.split("\n");
+			for (int i = 1; i < entries.length; i++) {
+				this.keepOffline(entries[i]);
+			}
+		} else if (msg.startsWith("" + Protocol.POINTEDMSG)) {
+			this.infoCenter.addOfflineMsg(msg.split(" ", 3)[1],
+					this.userName, msg.split(" ", 3)[2]);
+		}
+	}
+
+	/**
+	 * Set up a new connection to the receiving port of the client to send one
+	 * message. A pointed message that cannot be sent is kept as an offline
+	 * message.
+	 * 
+	 * @param msg
+	 *            message to be sent.
+	 */
+	private void sendMsgOneShot(String msg) {
+		try {
+			Socket sk = new Socket();
+			sk.setReuseAddress(true);
+			InetSocketAddress client = new InetSocketAddress(ipAddress,
+					cliRecPort);
+			// a dead client should not hold up the thread for long.
+			sk.connect(client, ServerConfig.CONNECTTIMEOUT);
+			PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+					sk.getOutputStream()), true);
+			writer.println(this.uuid.toString() + " " + msg);
+			writer.flush();
+			System.out.println("[MSG SENT][TO " + this.userName + "]: " + msg);
+			sk.close();
+		} catch (Exception e) {
+			System.out.println("[EXCEPTION] Cannot send message to host: "+this.userName);
+			this.keepOffline(msg);
+		}
+	}
+
+	public boolean offerOutbox(String msg) {
+		boolean queued = this.outbox.offer(msg);
+		this.recordOutboxDepth();
+		return queued;
+	}
+
+	public boolean offerOutbox(String msg, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		boolean queued = this.outbox.offer(msg, timeout, unit);
+		this.recordOutboxDepth();
+		return queued;
+	}
+
+	public String pollOutbox() {
+		return this.outbox.poll();
+	}
+
+	/**
+	 * Mark the outbox as being drained by a writer.
+	 * 
+	 * @return false if a writer is already on it.
+	 */
+	public boolean markOutboxScheduled() {
+		return this.outboxScheduled.compareAndSet(false, true);
+	}
+
+	/**
+	 * Invoked by the writer when the outbox is drained.
+	 * 
+	 * @return true if new messages arrived meanwhile and it should go on.
+	 */
+	public boolean finishOutboxRound() {
+		this.outboxScheduled.set(false);
+		return !this.outbox.isEmpty()
+				&& this.outboxScheduled.compareAndSet(false, true);
+	}
+
+	private void recordOutboxDepth() {
+		long depth = this.outbox.size();
+		long max;
+		while (depth > (max = this.outboxMaxDepth.get())) {
+			if (this.outboxMaxDepth.compareAndSet(max, depth)) {
+				break;
+			}
+		}
+	}
+
+	public void countDropped() {
+		this.outboxDropped.incrementAndGet();
+	}
+
+	public int getOutboxDepth() {
+		return this.outbox.size();
+	}
+
+	public long getOutboxMaxDepth() {
+		return this.outboxMaxDepth.get();
+	}
+
+	public long getOutboxDropped() {
+		return this.outboxDropped.get();
 	}
 
 	/**
@@ -91,14 +277,10 @@ public class ClientInfoCell {
 	}
 
 	public long getLastLiveTime() {
-		synchronized (this.liveTimeKey) {
-			return this.lastLiveSignal;
-		}
+		return this.lastLiveSignal;
 	}
 
 	public void setLastLiveTime(long time) {
-		synchronized (this.liveTimeKey) {
-			this.lastLiveSignal = time;
-		}
+		this.lastLiveSignal = time;
 	}
 }
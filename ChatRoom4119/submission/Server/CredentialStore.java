@@ -0,0 +1,140 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory index of the credential file. The file is read once into a hash
+ * map from username to a salted password hash, and read again only when its
+ * modification time changes. A reload builds a new map and replaces the old
+ * one at once, so lookups never take a lock nor touch the disk.
+ *
+ * @author Chao Chen cc3736
+ *
+ */
+public class CredentialStore {
+
+	// How often in milliseconds the modification time of the file is checked.
+	private static final long CHECK_INTERVAL = 1000;
+
+	private static final int SALT_LENGTH = 16;
+
+	/**
+	 * Salted SHA-256 hash of one user's password.
+	 */
+	private static class Credential {
+		byte[] salt;
+		byte[] hash;
+	}
+
+	private File file;
+	private SecureRandom random = new SecureRandom();
+
+	// The current index. Never modified after it is published.
+	private volatile HashMap<String, Credential> index = new HashMap<String, Credential>();
+
+	// Modification time of the file when the current index was loaded.
+	private volatile long loadedModifiedTime = -1;
+
+	// The time after which the file should be checked again.
+	private AtomicLong nextCheckTime = new AtomicLong(0);
+
+	public CredentialStore(String fileName) {
+		this.file = new File(fileName);
+		this.reload();
+	}
+
+	/**
+	 * Check whether the username is in the credential file.
+	 *
+	 * @param userName
+	 * @return true if the username exists, false otherwise.
+	 */
+	public boolean userExist(String userName) {
+		if (userName == null)
+			return false;
+		this.reloadIfModified();
+		return this.index.containsKey(userName);
+	}
+
+	/**
+	 * Check the username and password against the credential file.
+	 *
+	 * @param userName
+	 * @param passWord
+	 * @return true if the username and password match in the file, false
+	 *         otherwise.
+	 */
+	public boolean checkPassword(String userName, String passWord) {
+		if (userName == null || passWord == null)
+			return false;
+		this.reloadIfModified();
+		Credential credential = this.index.get(userName);
+		if (credential == null) {
+			return false;
+		}
+		try {
+			return MessageDigest.isEqual(credential.hash,
+					hash(credential.salt, passWord));
+		} catch (Exception e) {
+			System.out.println("[EXCEPTION] Failed in file authentication. Error occurs when hashing the password.");
+			return false;
+		}
+	}
+
+	/**
+	 * Reload the file if its modification time has changed. Only one thread
+	 * checks the file in every CHECK_INTERVAL, the others go on with the
+	 * current index.
+	 */
+	private void reloadIfModified() {
+		long now = System.currentTimeMillis();
+		long next = this.nextCheckTime.get();
+		if (now < next
+				|| !this.nextCheckTime.compareAndSet(next, now + CHECK_INTERVAL)) {
+			return;
+		}
+		if (this.file.lastModified() != this.loadedModifiedTime) {
+			this.reload();
+		}
+	}
+
+	/**
+	 * Read the whole file into a new index and publish it. If the file cannot
+	 * be read, the current index is kept. The file is closed either way.
+	 */
+	private void reload() {
+		long modifiedTime = this.file.lastModified();
+		HashMap<String, Credential> newIndex = new HashMap<String, Credential>();
+		try (BufferedReader bf = new BufferedReader(new FileReader(this.file))) {
+			String line;
+			while ((line = bf.readLine()) != null) {
+				String[] pair = line.split(" ", 2);
+				if (pair.length != 2) {
+					continue;
+				}
+				Credential credential = new Credential();
+				credential.salt = new byte[SALT_LENGTH];
+				this.random.nextBytes(credential.salt);
+				credential.hash = hash(credential.salt, pair[1]);
+				newIndex.put(pair[0], credential);
+			}
+		} catch (Exception e) {
+			System.out.println("[EXCEPTION] Error occurs when reading credential file.");
+			return;
+		}
+		this.index = newIndex;
+		this.loadedModifiedTime = modifiedTime;
+		System.out.println("[INFO] " + newIndex.size()
+				+ " credentials are loaded.");
+	}
+
+	private static byte[] hash(byte[] salt, String passWord) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		md.update(salt);
+		return md.digest(passWord.getBytes("UTF-8"));
+	}
+}
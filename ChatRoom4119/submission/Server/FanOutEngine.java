@@ -0,0 +1,98 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronous fan-out of messages to many users. Every user has a bounded
+ * outbox in its information cell; a message is put in the outbox and a pool
+ * of writer threads drains the outboxes, one writer per user at a time. A
+ * slow or dead client only fills up its own outbox and never holds up the
+ * sender or the other recipients.
+ *
+ * When an outbox is full, the policy in ServerConfig.OUTBOXPOLICY decides:
+ * DROPOLDEST drops the oldest queued message, DROPNEWEST drops the new one,
+ * and BLOCK makes the sender wait up to ServerConfig.OUTBOXWAIT milliseconds
+ * for room before dropping the new one.
+ *
+ * @author Chao Chen cc3736
+ *
+ */
+public class FanOutEngine {
+	public static final String DROPOLDEST = "DROPOLDEST";
+	public static final String DROPNEWEST = "DROPNEWEST";
+	public static final String BLOCK = "BLOCK";
+
+	private InfoCenter infoCenter;
+	private ExecutorService writers;
+
+	public FanOutEngine(InfoCenter infoCenter) {
+		this.infoCenter = infoCenter;
+		this.writers = Executors.newFixedThreadPool(ServerConfig.WRITERTHREADS);
+	}
+
+	/**
+	 * Queue a message to a user and return at once.
+	 *
+	 * @param cl
+	 *            information cell of the recipient.
+	 * @param msg
+	 *            message to be sent.
+	 * @return true if the message is queued; false if it is dropped.
+	 */
+	public boolean send(ClientInfoCell cl, String msg) {
+		boolean queued = cl.offerOutbox(msg);
+		if (!queued) {
+			if (ServerConfig.OUTBOXPOLICY.equals(DROPOLDEST)) {
+				String oldest = cl.pollOutbox();
+				if (oldest != null) {
+					this.drop(cl, oldest);
+				}
+				queued = cl.offerOutbox(msg);
+			} else if (ServerConfig.OUTBOXPOLICY.equals(BLOCK)) {
+				try {
+					queued = cl.offerOutbox(msg, ServerConfig.OUTBOXWAIT,
+							TimeUnit.MILLISECONDS);
+				} catch (InterruptedException ie) {
+				}
+			}
+			if (!queued) {
+				this.drop(cl, msg);
+			}
+		}
+		this.schedule(cl);
+		return queued;
+	}
+
+	/**
+	 * Hand the outbox of a user to a writer unless one is already on it.
+	 */
+	private void schedule(final ClientInfoCell cl) {
+		if (!cl.markOutboxScheduled()) {
+			return;
+		}
+		this.writers.execute(new Runnable() {
+			public void run() {
+				do {
+					String msg;
+					while ((msg = cl.pollOutbox()) != null) {
+						cl.sendMsg(msg);
+					}
+				} while (cl.finishOutboxRound());
+			}
+		});
+	}
+
+	/**
+	 * Count a dropped message. A pointed message is kept as an offline
+	 * message instead of being lost.
+	 */
+	private void drop(ClientInfoCell cl, String msg) {
+		cl.countDropped();
+		System.out.println("[MSG DROPPED][TO " + cl.getUserName() + "]: "
+				+ msg);
+		if (msg.startsWith("" + Protocol.POINTEDMSG)) {
+			this.infoCenter.addOfflineMsg(msg.split(" ", 3)[1],
+					cl.getUserName(), msg.split(" ", 3)[2]);
+		}
+	}
+}
@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Codec of the messages read from and written to client connections.
+ *
+ * A new connection starts in line mode, where one message is a line ended
+ * with "\n", as the one-shot clients send it. A persistent session is in
+ * frame mode, where each frame is a 4-byte big-endian length followed by the
+ * UTF-8 bytes of one message line ("UUID message"), so one connection can
+ * carry any number of requests, replies and pushed messages in both
+ * directions.
+ *
+ * @author Chao Chen cc3736
+ *
+ */
+public class Frame {
+	// A frame or line longer than this is regarded as a broken stream.
+	public static final int MAX_LENGTH = 64 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Check if the first line of a connection asks to open a persistent
+	 * session. Only the exact form "UUID SESSION" counts, so that a one-shot
+	 * message whose text ends with the word is not taken for one. Used by
+	 * both the I/O thread and the session processor, so that they always
+	 * agree on the mode of the connection.
+	 *
+	 * @param line
+	 *            the first line read from the connection.
+	 * @return true if it is a session request.
+	 */
+	public static boolean isSessionRequest(String line) {
+		String[] tokens = line.split(" ");
+		return tokens.length == 2 && tokens[1].equals(Protocol.SESSION);
+	}
+
+	/**
+	 * Encode one message as a frame.
+	 *
+	 * @param msg
+	 *            the message line.
+	 * @return buffer ready to be written to the channel.
+	 */
+	public static ByteBuffer encode(String msg) {
+		byte[] data = msg.getBytes(UTF8);
+		ByteBuffer bb = ByteBuffer.allocate(4 + data.length);
+		bb.putInt(data.length);
+		bb.put(data);
+		bb.flip();
+		return bb;
+	}
+
+	/**
+	 * Encode one message as a line, for clients in one-shot mode.
+	 *
+	 * @param line
+	 *            the message line.
+	 * @return buffer ready to be written to the channel.
+	 */
+	public static ByteBuffer encodeLine(String line) {
+		return ByteBuffer.wrap((line + "\n").getBytes());
+	}
+
+	/**
+	 * Decode one frame from the buffer if it is complete.
+	 *
+	 * @param bb
+	 *            buffer in read mode. Its position is moved past the frame
+	 *            only if a whole frame is decoded.
+	 * @return the message line; null if the frame is not complete yet.
+	 * @throws IOException
+	 *             if the frame length is invalid.
+	 */
+	public static String decode(ByteBuffer bb) throws IOException {
+		if (bb.remaining() < 4) {
+			return null;
+		}
+		int length = bb.getInt(bb.position());
+		if (length < 0 || length > MAX_LENGTH) {
+			throw new IOException("Invalid frame length: " + length);
+		}
+		if (bb.remaining() < 4 + length) {
+			return null;
+		}
+		bb.getInt();
+		byte[] data = new byte[length];
+		bb.get(data);
+		return new String(data, UTF8);
+	}
+
+	/**
+	 * Decode one line from the buffer if it is complete.
+	 *
+	 * @param bb
+	 *            buffer in read mode. Its position is moved past the line
+	 *            only if a whole line is decoded.
+	 * @return the line without the line separator; null if the line is not
+	 *         complete yet.
+	 */
+	public static String decodeLine(ByteBuffer bb) {
+		for (int i = bb.position(); i < bb.limit(); i++) {
+			if (bb.get(i) == '\n') {
+				byte[] data = new byte[i - bb.position()];
+				bb.get(data);
+				bb.get(); // skip '\n'
+				String line = new String(data);
+				if (line.endsWith("\r")) {
+					line = line.substring(0, line.length() - 1);
+				}
+				return line;
+			}
+		}
+		return null;
+	}
+}
@@ -1,67 +1,76 @@
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The data structure of the server to store all the informations.
  * 
+ * All the tables are concurrent maps and sets, so that the session threads
+ * read and update them without contending on a global monitor. Iterations
+ * over the online users work on a snapshot of the handlers.
+ * 
  * @author Chao Chen cc3736
  *
  */
 public class InfoCenter {
 
 	// Store the user to be blocked and when it starts to be blocked.
-	private volatile HashMap<String, Long> blockList = new HashMap<String, Long>();
+	private ConcurrentHashMap<String, Long> blockList = new ConcurrentHashMap<String, Long>();
 
 	// Store the username: infoCell pair of logged-in users.
-	private volatile HashMap<String, ClientInfoCell> handlers = new HashMap<String, ClientInfoCell>();
+	private ConcurrentHashMap<String, ClientInfoCell> handlers = new ConcurrentHashMap<String, ClientInfoCell>();
 
 	// Store the identifier message header: username pair to parse messages.
-	private volatile HashMap<UUID, String> userUUIDs = new HashMap<UUID, String>();
+	private ConcurrentHashMap<UUID, String> userUUIDs = new ConcurrentHashMap<UUID, String>();
 
 	// Store users' black list.
-	private volatile HashMap<String, HashSet<String>> blackList = new HashMap<String, HashSet<String>>();
+	private ConcurrentHashMap<String, Set<String>> blackList = new ConcurrentHashMap<String, Set<String>>();
 
-	// Store user's offline messages.
-	private volatile HashMap<String, ArrayList<String>> offlineMessages = new HashMap<String, ArrayList<String>>();
+	// Store user's offline messages on disk.
+	private OfflineMessageStore offlineMessages;
 
 	// Store how many times a user has attempted but failed to log in.
-	private volatile HashMap<String, Integer> count_failed = new HashMap<String, Integer>();
+	private ConcurrentHashMap<String, AtomicInteger> count_failed = new ConcurrentHashMap<String, AtomicInteger>();
 
 	// Store the ip address requests that is sent but not responded yet.
-	private volatile HashSet<String> ipRequests = new HashSet<String>();
-
-	// keys used for synchronized I/O accesses.
-	private Object blockListKey = new Object();
-	private Object handlersKey = new Object();
-	private Object blackListKey = new Object();
-	private Object authFileKey = new Object();
-	private Object offlineMsgKey = new Object();
-	private Object ipRequestsKey = new Object();
-	private Object userUUIDsKey = new Object();
-	private Object countFailedKey = new Object();
+	private Set<String> ipRequests = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	// Index of the credential file.
+	private CredentialStore credentials = new CredentialStore(
+			ServerConfig.CREDENTIALFILE);
+
+	// Asynchronous delivery of broadcast messages.
+	private FanOutEngine fanOut = new FanOutEngine(this);
+
+	// Liveness deadlines of the online users.
+	private TimingWheel liveness = new TimingWheel(ServerConfig.LIVENESSTICK);
+
+	public InfoCenter() {
+		try {
+			this.offlineMessages = new OfflineMessageStore();
+		} catch (Exception e) {
+			System.out.println("[EXCEPTION] Failed to open the offline message store in "
+					+ ServerConfig.OFFLINEDIR);
+			System.exit(-1);
+		}
+	}
 
 	public void addUserUUID(String userName, UUID uuid) {
-		synchronized (this.userUUIDsKey) {
-			this.userUUIDs.put(uuid, userName);
-		}
+		this.userUUIDs.put(uuid, userName);
 	}
 
 	public void removeUserUUID(UUID uuid) {
-		synchronized (this.userUUIDsKey) {
-			this.userUUIDs.remove(uuid);
-		}
+		this.userUUIDs.remove(uuid);
 	}
 
 	public String getUserFromUUID(UUID uuid) {
-		synchronized (this.userUUIDsKey) {
-			return this.userUUIDs.get(uuid);
-		}
+		return this.userUUIDs.get(uuid);
 	}
 
 	/**
@@ -72,98 +81,100 @@ public class InfoCenter {
 	 *         block list; false otherwise.
 	 */
 	public boolean addFailedCount(String userName) {
-		synchronized (this.countFailedKey) {
-			if (this.count_failed.containsKey(userName)) {
-				this.count_failed.put(userName,
-						this.count_failed.get(userName) + 1);
-			} else {
-				this.count_failed.put(userName, 1);
-			}
-			if (this.count_failed.get(userName) >= ServerConfig.LOGINATTEMPMAX) {
-				this.count_failed.remove(userName);
-				return true;
+		AtomicInteger count = this.count_failed.get(userName);
+		if (count == null) {
+			AtomicInteger newCount = new AtomicInteger(0);
+			count = this.count_failed.putIfAbsent(userName, newCount);
+			if (count == null) {
+				count = newCount;
 			}
-			return false;
 		}
+		if (count.incrementAndGet() >= ServerConfig.LOGINATTEMPMAX) {
+			this.count_failed.remove(userName, count);
+			return true;
+		}
+		return false;
 	}
 
 	public void clearFailedCount(String userName) {
-		synchronized (this.countFailedKey) {
-			this.count_failed.remove(userName);
-		}
+		this.count_failed.remove(userName);
 	}
 
 	public void addIpRequest(String requester, String requested) {
-		synchronized (this.ipRequestsKey) {
-			if (!this.ipRequests.contains(requester + " " + requested)) {
-				this.ipRequests.add(requester + " " + requested);
-			}
-		}
+		this.ipRequests.add(requester + " " + requested);
 	}
 
 	public boolean ipRequestExist(String requester, String requested) {
-		synchronized (this.ipRequestsKey) {
-			return this.ipRequests.contains(requester + " " + requested);
-
-		}
+		return this.ipRequests.contains(requester + " " + requested);
 	}
 
 	public void removeIpRequest(String requester, String requested) {
-		synchronized (this.ipRequestsKey) {
-			if (this.ipRequests.contains(requester + " " + requested)) {
-				this.ipRequests.remove(requester + " " + requested);
-			}
-		}
+		this.ipRequests.remove(requester + " " + requested);
 	}
 
 	public void addOfflineMsg(String sender, String receiver, String msg) {
-		synchronized (this.offlineMsgKey) {
-			if (!this.offlineMessages.containsKey(receiver)) {
-				ArrayList<String> msgList = new ArrayList<String>();
-				msgList.add(Protocol.POINTEDMSG + " " + sender + " " + msg);
-				this.offlineMessages.put(receiver, msgList);
-			} else {
-				ArrayList<String> msgList = this.offlineMessages.get(receiver);
-				msgList.add(Protocol.POINTEDMSG + " " + sender + " " + msg);
-			}
-		}
+		this.offlineMessages.append(receiver, Protocol.POINTEDMSG + " "
+				+ sender + " " + msg);
 	}
 
-	public boolean hasOfflineMsg(String userName) {
-		synchronized (this.offlineMsgKey) {
-			if (this.offlineMessages.containsKey(userName))
-				return true;
-			else
-				return false;
-		}
+	/**
+	 * @param userName
+	 * @return number of offline messages stored for the user.
+	 */
+	public int countOfflineMsg(String userName) {
+		return this.offlineMessages.count(userName);
 	}
 
-	public ArrayList<String> getOfflineMsg(String userName) {
-		synchronized (this.offlineMsgKey) {
-			ArrayList<String> msgList = this.offlineMessages.get(userName);
-			this.offlineMessages.remove(userName);
-			return msgList;
-		}
+	/**
+	 * Take out the oldest offline message of the user.
+	 * 
+	 * @param userName
+	 * @return the message; null if there is none.
+	 */
+	public String pollOfflineMsg(String userName) {
+		return this.offlineMessages.poll(userName);
+	}
+
+	/**
+	 * Drop expired offline messages and reclaim disk space. Invoked
+	 * periodically by the OfflineUserKicker thread.
+	 */
+	public void compactOfflineMsg() {
+		this.offlineMessages.compact();
+	}
+
+	/**
+	 * Force the offline messages stored since the last flush to the disk.
+	 * Invoked periodically by the OfflineUserKicker thread.
+	 */
+	public void flushOfflineMsg() {
+		this.offlineMessages.flush();
 	}
 
 	public void addHandler(ClientInfoCell handler) {
-		synchronized (this.handlersKey) {
-			this.handlers.put(handler.getUserName(), handler);
-		}
+		this.handlers.put(handler.getUserName(), handler);
+		this.liveness.schedule(handler, handler.getLastLiveTime()
+				+ ServerConfig.TIMEOUT * 1000L);
 	}
 
-	public void removeUserHandler(String userName) {
-		synchronized (this.handlersKey) {
-			this.handlers.remove(userName);
+	/**
+	 * Remove the handler only if it is still the current one of its user, so
+	 * that a newer login of the same user is kept. The persistent session of
+	 * a removed user is no longer needed and is closed.
+	 * 
+	 * @param handler
+	 * @return true if the handler is removed.
+	 */
+	public boolean removeUserHandler(ClientInfoCell handler) {
+		if (this.handlers.remove(handler.getUserName(), handler)) {
+			handler.closeSession();
+			return true;
 		}
-
+		return false;
 	}
 
 	public boolean isLoggedIn(String userName) {
-		synchronized (this.handlersKey) {
-			return this.handlers.containsKey(userName);
-
-		}
+		return this.handlers.containsKey(userName);
 	}
 
 	/**
@@ -172,75 +183,72 @@ public class InfoCenter {
 	 * @return online users' names as "[Bob, ColumbiaABC, David]"
 	 */
 	public String getOnlineUsers() {
-		synchronized (this.handlersKey) {
-			return this.handlers.keySet().toString();
+		return new ArrayList<String>(this.handlers.keySet()).toString();
+	}
 
-		}
+	/**
+	 * Get a snapshot of the logged-in users' information cells.
+	 * 
+	 * @return the cells at the time of the call.
+	 */
+	public ArrayList<ClientInfoCell> getHandlers() {
+		return new ArrayList<ClientInfoCell>(this.handlers.values());
 	}
 
 	public ClientInfoCell getUserHandler(String userName) {
-		synchronized (this.handlersKey) {
-			return this.handlers.get(userName);
-		}
+		return this.handlers.get(userName);
 	}
 
 	public String getAddress(String userName) {
-		synchronized (this.handlersKey) {
-			if (this.handlers.containsKey(userName)) {
-				return this.handlers.get(userName).getAddress();
-			} else {
-				return "NULL";
-			}
+		ClientInfoCell handler = this.handlers.get(userName);
+		if (handler != null) {
+			return handler.getAddress();
+		} else {
+			return "NULL";
 		}
 	}
 
 	public int addToBlackList(String blocker, String blocked) {
-		synchronized (this.blackListKey) {
-			if (!this.blackList.containsKey(blocker)) {
-				HashSet<String> s = new HashSet<String>();
-				s.add(blocked);
-				this.blackList.put(blocker, s);
-				return 1;
-			} else if (!this.blackList.get(blocker).contains(blocked)) {
-				this.blackList.get(blocker).add(blocked);
-				return 1;
+		Set<String> s = this.blackList.get(blocker);
+		if (s == null) {
+			Set<String> newSet = Collections
+					.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			s = this.blackList.putIfAbsent(blocker, newSet);
+			if (s == null) {
+				s = newSet;
 			}
-			return 0;
 		}
+		return s.add(blocked) ? 1 : 0;
 	}
 
 	public int removeFromBlackList(String blocker, String blocked) {
-		synchronized (this.blackListKey) {
-			if (this.blackList.containsKey(blocker)) {
-				if (this.blackList.get(blocker).remove(blocked))
-					return 1;
-			}
-			return 0;
+		Set<String> s = this.blackList.get(blocker);
+		if (s != null && s.remove(blocked)) {
+			return 1;
 		}
+		return 0;
 	}
 
 	public boolean isInBlackList(String blocked, String blocker) {
-		synchronized (this.blackListKey) {
-			if (this.blackList.containsKey(blocker)
-					&& this.blackList.get(blocker).contains(blocked)) {
-				return true;
-			}
-			return false;
-		}
+		Set<String> s = this.blackList.get(blocker);
+		return s != null && s.contains(blocked);
 	}
 
 	public void addToBlockList(String userName) {
-		synchronized (this.blockListKey) {
-			this.refleshBlockList();
-			this.blockList.put(userName, new Date().getTime());
-		}
+		this.refleshBlockList();
+		this.blockList.put(userName, new Date().getTime());
 	}
 
 	public boolean isInBlockList(String userName) {
-		synchronized (this.blockListKey) {
-			this.refleshBlockList();
-			return this.blockList.containsKey(userName);
+		Long blockedTime = this.blockList.get(userName);
+		if (blockedTime == null) {
+			return false;
 		}
+		if (new Date().getTime() - blockedTime > ServerConfig.BLOCKTIME * 1000) {
+			this.blockList.remove(userName, blockedTime);
+			return false;
+		}
+		return true;
 	}
 
 	/**
@@ -248,16 +256,31 @@ public class InfoCenter {
 	 */
 	private void refleshBlockList() {
 		long currentTime = new Date().getTime();
-		for (String userName : this.blockList.keySet()) {
-			if (currentTime - this.blockList.get(userName) > ServerConfig.BLOCKTIME * 1000) {
-				this.blockList.remove(userName);
+		for (Map.Entry<String, Long> entry : this.blockList.entrySet()) {
+			if (currentTime - entry.getValue() > ServerConfig.BLOCKTIME * 1000) {
+				this.blockList.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Print the depth and drop metrics of the outboxes that are in use or have
+	 * dropped messages.
+	 */
+	public void logOutboxStats() {
+		for (ClientInfoCell cl : this.getHandlers()) {
+			if (cl.getOutboxDepth() > 0 || cl.getOutboxDropped() > 0) {
+				System.out.println("[STATS][OUTBOX " + cl.getUserName()
+						+ "]: depth=" + cl.getOutboxDepth() + " max="
+						+ cl.getOutboxMaxDepth() + " dropped="
+						+ cl.getOutboxDropped());
 			}
 		}
 	}
 
 	/**
 	 * A method used to send broadcast message. If type 0 is chosen. The message
-	 * will be sent directly to all other users. Usually used for login/logoff
+	 * will be queued to all other users. Usually used for login/logoff
 	 * notification. If type 1 is chosen. The message will be encaptulated in a
 	 * BROADCASTEDMSG headers.
 	 * 
@@ -267,8 +290,8 @@ public class InfoCenter {
 	 *            the message sender or who the message is related to.
 	 * @param type
 	 *            message type (0 or 1)
-	 * @return true if all the online users receive the message, false if some
-	 *         user doesn't receive the message for some reasons like the
+	 * @return true if the message is queued to all the online users, false if
+	 *         some user doesn't receive the message for some reasons like the
 	 *         blacklist.
 	 */
 	public boolean broadcastMessage(String message, String userName, int type) {
@@ -276,15 +299,15 @@ public class InfoCenter {
 		String msg;
 		if (type == 0) {
 			msg = message;
-			for (ClientInfoCell cl : this.handlers.values()) {
+			for (ClientInfoCell cl : this.getHandlers()) {
 				String user = cl.getUserName();
 				if (user != null && !userName.equals(user)&&!this.isInBlackList(user, userName)) {
-					cl.sendMsg(msg);
+					this.fanOut.send(cl, msg);
 				}
 			}
 		} else if (type == 1) {
 			msg = Protocol.BROADCASTEDMSG + " " + userName + " " + message;
-			for (ClientInfoCell cl : this.handlers.values()) {
+			for (ClientInfoCell cl : this.getHandlers()) {
 				String user = cl.getUserName();
 				if (user == null || user.equals(userName)) {
 					continue;
@@ -292,7 +315,7 @@ public class InfoCenter {
 					hasTrouble = true;
 					System.out.println("[MSG BLOCKED][FROM: "+userName+"][TO: "+user+"]: "+msg);
 				} else {
-					cl.sendMsg(msg);
+					this.fanOut.send(cl, msg);
 				}
 			}
 		}
@@ -306,26 +329,7 @@ public class InfoCenter {
 	 * @return true if the username exists, false otherwise.
 	 */
 	public boolean userExist(String userName) {
-		synchronized (this.authFileKey) {
-			boolean exists = false;
-			if (userName == null)
-				return exists;
-			try {
-				File fl = new File(ServerConfig.CREDENTIALFILE);
-				BufferedReader bf = new BufferedReader(new FileReader(fl));
-				String line;
-				while ((line = bf.readLine()) != null) {
-					if (line.split(" ")[0].equals(userName)) {
-						exists = true;
-						break;
-					}
-				}
-				bf.close();
-			} catch (Exception e) {
-				System.out.println("[EXCEPTION] Error occurs when reading credential file.");
-			}
-			return exists;
-		}
+		return this.credentials.userExist(userName);
 	}
 
 	/**
@@ -337,53 +341,32 @@ public class InfoCenter {
 	 *         otherwise.
 	 */
 	public boolean checkAuthFile(String userName, String passWord) {
-		synchronized (this.authFileKey) {
-			boolean isValid = false;
-			if (userName == null || passWord == null)
-				return isValid;
-			String auth = userName + " " + passWord;
-			try {
-				File fl = new File(ServerConfig.CREDENTIALFILE);
-				BufferedReader bf = new BufferedReader(new FileReader(fl));
-				String line;
-				while ((line = bf.readLine()) != null) {
-					if (line.equals(auth)) {
-						isValid = true;
-					}
-				}
-				bf.close();
-			} catch (Exception e) {
-				System.out.println("[EXCEPTION] Failed in file authentication. Error occurs when reading credential file.");
-			}
-			return isValid;
-		}
+		return this.credentials.checkPassword(userName, passWord);
 	}
 
 	/**
 	 * A method to check the "alive" users based on the lastLiveTime attribute.
 	 * If a user is muted for a too long duration, it will be defined as
-	 * logged-off and kicked out. This method will be invoked periodically by
-	 * the OfflineUserKicker thread.
+	 * logged-off and kicked out. This method will be invoked every tick by
+	 * the OfflineUserKicker thread, and only checks the users whose deadline
+	 * in the timing wheel has come. A user who was heard from meanwhile is
+	 * scheduled again at the new deadline; a user who has logged out is
+	 * dropped from the wheel.
 	 */
 	public void checkAliveUser() {
 		long now = new Date().getTime();
-		ArrayList<String> names = new ArrayList<String>();
-		ArrayList<UUID> uuids = new ArrayList<UUID>();
-
-		for (ClientInfoCell hd : this.handlers.values()) {
-			if (now - hd.getLastLiveTime() > ServerConfig.TIMEOUT * 1000) {
-				names.add(hd.getUserName());
-				uuids.add(hd.getUUID());
+		for (ClientInfoCell hd : this.liveness.advance(now)) {
+			long deadline = hd.getLastLiveTime() + ServerConfig.TIMEOUT * 1000L;
+			if (now <= deadline) {
+				if (this.getUserHandler(hd.getUserName()) == hd) {
+					this.liveness.schedule(hd, deadline);
+				}
+			} else if (this.removeUserHandler(hd)) {
+				this.removeUserUUID(hd.getUUID());
+				this.broadcastMessage("" + Protocol.LOGOFFNOTIFY + " "
+						+ hd.getUserName(), hd.getUserName(), 0);
 			}
 		}
-		for (int i = 0; i < names.size(); i++) {
-			this.removeUserHandler(names.get(i));
-			this.removeUserUUID(uuids.get(i));
-			this.broadcastMessage(
-					"" + Protocol.LOGOFFNOTIFY + " " + names.get(i),
-					names.get(i), 0);
-		}
-
 	}
 
 }
@@ -0,0 +1,496 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Durable store of offline messages. Messages are appended to a log of
+ * memory-mapped segment files under ServerConfig.OFFLINEDIR, and only a small
+ * per-user index of record positions is kept in memory. A delivered or
+ * expired record is marked in place; segments that hold few live records are
+ * compacted by copying the live ones to the head of the log, and empty
+ * segments are deleted. The index is rebuilt from the segments on start.
+ *
+ * Writes go to the mapped segments and are forced to the disk by flush(),
+ * invoked every OFFLINEFLUSH milliseconds, rather than on every append.
+ *
+ * In a segment, the records are arranged as the following sequence.
+ *
+ * | component         |  type   |  length(byte)        |
+ * ______________________________________________________
+ * | status            |  byte   |   1                  |
+ * | timestamp         |  long   |   8                  |
+ * | sequence          |  long   |   8                  |
+ * | receiver length   |  short  |   2                  |
+ * | message length    |  int    |   4                  |
+ * | receiver          |  byte[] |   receiver length    |
+ * | message           |  byte[] |   message length     |
+ *
+ * The unused tail of a segment is zero, which reads as status FREE. The
+ * sequence number keeps the arrival order of the messages, since compaction
+ * moves old records behind newer ones. A record moved by compaction keeps its
+ * sequence number, so if a crash leaves both copies live, the later one is
+ * dropped on start.
+ *
+ * @author Chao Chen cc3736
+ *
+ */
+public class OfflineMessageStore {
+	private static final byte FREE = 0;
+	private static final byte LIVE = 1;
+	private static final byte DONE = 2;
+
+	private static final int HEADER_LENGTH = 23;
+
+	// Number of lock stripes guarding the per-user indexes.
+	private static final int STRIPES = 16;
+
+	/**
+	 * One memory-mapped segment file of the log.
+	 */
+	private static class Segment {
+		int id;
+		File file;
+		FileChannel channel;
+		MappedByteBuffer buffer;
+		int writePos = 0;
+		AtomicInteger liveCount = new AtomicInteger(0);
+		// written or marked since the last flush.
+		volatile boolean dirty = false;
+		// records written to this segment, guarded by appendKey.
+		ArrayList<Record> records = new ArrayList<Record>();
+	}
+
+	/**
+	 * Position of one message in the log. Moved by compaction.
+	 */
+	private static class Record {
+		String receiver;
+		long timestamp;
+		long sequence;
+		int length;
+		Segment segment;
+		int offset;
+		boolean live = true;
+	}
+
+	private File dir;
+
+	// all the segments by id, guarded by appendKey.
+	private TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+	private Segment active;
+
+	// <receiver, records in arrival order>. A deque is only accessed under
+	// the lock stripe of its receiver.
+	private ConcurrentHashMap<String, ArrayDeque<Record>> index = new ConcurrentHashMap<String, ArrayDeque<Record>>();
+
+	// Sequence number of the next record, guarded by appendKey.
+	private long nextSequence = 0;
+
+	// Lock order: a user stripe is taken before appendKey.
+	private Object appendKey = new Object();
+	private Object[] userKeys = new Object[STRIPES];
+
+	/**
+	 * Open the store and rebuild the index from the existing segments.
+	 *
+	 * @throws IOException
+	 */
+	public OfflineMessageStore() throws IOException {
+		for (int i = 0; i < userKeys.length; i++) {
+			userKeys[i] = new Object();
+		}
+		this.dir = new File(ServerConfig.OFFLINEDIR);
+		if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+			throw new IOException("Cannot create " + this.dir);
+		}
+		File[] files = this.dir.listFiles();
+		TreeMap<Integer, File> found = new TreeMap<Integer, File>();
+		for (File f : files) {
+			String name = f.getName();
+			if (name.startsWith("segment-") && name.endsWith(".log")) {
+				found.put(Integer.valueOf(name.substring(8, name.length() - 4)),
+						f);
+			}
+		}
+		int recovered = 0;
+		HashSet<Long> liveSequences = new HashSet<Long>();
+		for (Integer id : found.keySet()) {
+			Segment seg = this.openSegment(id, found.get(id));
+			recovered += this.recover(seg, liveSequences);
+			this.segments.put(id, seg);
+			this.active = seg;
+		}
+		if (this.active == null) {
+			this.roll();
+		}
+		// records moved by compaction are found after newer ones.
+		Comparator<Record> bySequence = new Comparator<Record>() {
+			public int compare(Record r1, Record r2) {
+				return Long.compare(r1.sequence, r2.sequence);
+			}
+		};
+		for (String receiver : this.index.keySet()) {
+			ArrayList<Record> sorted = new ArrayList<Record>(
+					this.index.get(receiver));
+			Collections.sort(sorted, bySequence);
+			this.index.put(receiver, new ArrayDeque<Record>(sorted));
+		}
+		System.out.println("[INFO] " + recovered
+				+ " offline messages are recovered.");
+	}
+
+	private Object userKey(String userName) {
+		return this.userKeys[(userName.hashCode() & 0x7fffffff)
+				% this.userKeys.length];
+	}
+
+	private boolean expired(Record r, long now) {
+		return now - r.timestamp > ServerConfig.OFFLINETTL * 1000L;
+	}
+
+	/**
+	 * Append a message for a user. If the user has too many messages, the
+	 * oldest ones are dropped.
+	 *
+	 * @param receiver
+	 * @param msg
+	 *            the message line to be delivered, i.e.
+	 *            "402 sender message".
+	 */
+	public void append(String receiver, String msg) {
+		synchronized (this.userKey(receiver)) {
+			ArrayDeque<Record> records = this.index.get(receiver);
+			if (records == null) {
+				records = new ArrayDeque<Record>();
+				this.index.put(receiver, records);
+			}
+			while (records.size() >= ServerConfig.OFFLINEQUOTA) {
+				Record oldest = records.poll();
+				System.out.println("[MSG DROPPED][TO " + receiver
+						+ "]: offline message quota exceeded.");
+				this.markDone(oldest);
+			}
+			try {
+				byte[] receiverBytes = receiver.getBytes("UTF-8");
+				byte[] msgBytes = msg.getBytes("UTF-8");
+				ByteBuffer bb = ByteBuffer.allocate(HEADER_LENGTH
+						+ receiverBytes.length + msgBytes.length);
+				bb.put(LIVE);
+				bb.putLong(System.currentTimeMillis());
+				bb.putLong(0); // assigned when written
+				bb.putShort((short) receiverBytes.length);
+				bb.putInt(msgBytes.length);
+				bb.put(receiverBytes);
+				bb.put(msgBytes);
+				Record r = new Record();
+				r.receiver = receiver;
+				r.timestamp = bb.getLong(1);
+				r.length = bb.capacity();
+				synchronized (this.appendKey) {
+					r.sequence = this.nextSequence++;
+					bb.putLong(9, r.sequence);
+					this.write(r, bb.array());
+				}
+				records.add(r);
+			} catch (Exception e) {
+				System.out
+						.println("[EXCEPTION] Failed to store offline message for "
+								+ receiver);
+			}
+			if (records.isEmpty()) {
+				this.index.remove(receiver);
+			}
+		}
+	}
+
+	/**
+	 * Take out the oldest message of a user. Expired messages are skipped.
+	 *
+	 * @param userName
+	 * @return the message line; null if there is none.
+	 */
+	public String poll(String userName) {
+		synchronized (this.userKey(userName)) {
+			ArrayDeque<Record> records = this.index.get(userName);
+			String msg = null;
+			long now = System.currentTimeMillis();
+			while (msg == null && records != null && !records.isEmpty()) {
+				Record r = records.poll();
+				if (!this.expired(r, now)) {
+					msg = this.readMessage(r);
+				}
+				this.markDone(r);
+			}
+			if (records != null && records.isEmpty()) {
+				this.index.remove(userName);
+			}
+			return msg;
+		}
+	}
+
+	/**
+	 * @param userName
+	 * @return number of messages stored for the user.
+	 */
+	public int count(String userName) {
+		synchronized (this.userKey(userName)) {
+			ArrayDeque<Record> records = this.index.get(userName);
+			return records == null ? 0 : records.size();
+		}
+	}
+
+	/**
+	 * Drop the expired messages, copy the live messages out of the segments
+	 * that are mostly delivered, and delete the segments that have no live
+	 * message. Invoked periodically.
+	 */
+	public void compact() {
+		ArrayList<Segment> sealed = new ArrayList<Segment>();
+		synchronized (this.appendKey) {
+			for (Segment seg : this.segments.values()) {
+				if (seg != this.active) {
+					sealed.add(seg);
+				}
+			}
+		}
+		long now = System.currentTimeMillis();
+		for (Segment seg : sealed) {
+			ArrayList<Record> records;
+			synchronized (this.appendKey) {
+				records = new ArrayList<Record>(seg.records);
+			}
+			boolean sparse = seg.liveCount.get() * 2 < records.size();
+			for (Record r : records) {
+				synchronized (this.userKey(r.receiver)) {
+					if (!r.live || r.segment != seg) {
+						continue;
+					}
+					if (this.expired(r, now)) {
+						ArrayDeque<Record> userRecords = this.index
+								.get(r.receiver);
+						if (userRecords != null) {
+							userRecords.remove(r);
+							if (userRecords.isEmpty()) {
+								this.index.remove(r.receiver);
+							}
+						}
+						this.markDone(r);
+					} else if (sparse) {
+						synchronized (this.appendKey) {
+							try {
+								this.move(r);
+							} catch (IOException ie) {
+								System.out
+										.println("[EXCEPTION] Failed to compact offline messages.");
+								return;
+							}
+						}
+					}
+				}
+			}
+			synchronized (this.appendKey) {
+				if (seg.liveCount.get() == 0) {
+					this.delete(seg);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Force the segments written or marked since the last flush to the
+	 * disk. Invoked periodically; appendKey is not held while forcing, so
+	 * appends go on meanwhile.
+	 */
+	public void flush() {
+		ArrayList<Segment> dirty = new ArrayList<Segment>();
+		synchronized (this.appendKey) {
+			for (Segment seg : this.segments.values()) {
+				if (seg.dirty) {
+					seg.dirty = false;
+					dirty.add(seg);
+				}
+			}
+		}
+		for (Segment seg : dirty) {
+			seg.buffer.force();
+		}
+	}
+
+	/**
+	 * Write a record at the head of the log. Invoked with appendKey held.
+	 */
+	private void write(Record r, byte[] data) throws IOException {
+		if (data.length > ServerConfig.OFFLINESEGMENTSIZE) {
+			throw new IOException("Message too long.");
+		}
+		if (this.active.writePos + data.length > this.active.buffer
+				.capacity()) {
+			this.roll();
+		}
+		ByteBuffer dst = this.active.buffer.duplicate();
+		dst.position(this.active.writePos);
+		dst.put(data);
+		this.active.dirty = true;
+		r.segment = this.active;
+		r.offset = this.active.writePos;
+		this.active.writePos += data.length;
+		this.active.liveCount.incrementAndGet();
+		this.active.records.add(r);
+	}
+
+	/**
+	 * Copy a live record to the head of the log and mark the old copy.
+	 * Invoked with the user stripe and appendKey held.
+	 */
+	private void move(Record r) throws IOException {
+		Segment from = r.segment;
+		int fromOffset = r.offset;
+		byte[] data = new byte[r.length];
+		ByteBuffer src = from.buffer.duplicate();
+		src.position(fromOffset);
+		src.get(data);
+		this.write(r, data);
+		from.buffer.put(fromOffset, DONE);
+		from.liveCount.decrementAndGet();
+		from.dirty = true;
+	}
+
+	private void markDone(Record r) {
+		r.live = false;
+		r.segment.buffer.put(r.offset, DONE);
+		r.segment.liveCount.decrementAndGet();
+		r.segment.dirty = true;
+	}
+
+	private String readMessage(Record r) {
+		ByteBuffer src = r.segment.buffer.duplicate();
+		src.position(r.offset + 17);
+		int receiverLength = src.getShort();
+		int msgLength = src.getInt();
+		src.position(src.position() + receiverLength);
+		byte[] msg = new byte[msgLength];
+		src.get(msg);
+		try {
+			return new String(msg, "UTF-8");
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Start a new segment as the head of the log. Invoked with appendKey held
+	 * or from the constructor.
+	 */
+	private void roll() throws IOException {
+		int id = this.segments.isEmpty() ? 0 : this.segments.lastKey() + 1;
+		Segment seg = this.openSegment(id, new File(this.dir, "segment-" + id
+				+ ".log"));
+		this.segments.put(id, seg);
+		this.active = seg;
+	}
+
+	private Segment openSegment(int id, File file) throws IOException {
+		Segment seg = new Segment();
+		seg.id = id;
+		seg.file = file;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		if (raf.length() == 0) {
+			raf.setLength(ServerConfig.OFFLINESEGMENTSIZE);
+		}
+		seg.channel = raf.getChannel();
+		seg.buffer = seg.channel.map(FileChannel.MapMode.READ_WRITE, 0,
+				raf.length());
+		return seg;
+	}
+
+	/**
+	 * Scan a segment and put its live records into the index. A live record
+	 * whose sequence number is already live in an earlier segment is a copy
+	 * left by a compaction interrupted by a crash, and is marked done.
+	 *
+	 * @param seg
+	 * @param liveSequences
+	 *            sequence numbers of the live records found so far
+	 * @return number of live records found.
+	 */
+	private int recover(Segment seg, HashSet<Long> liveSequences) {
+		ByteBuffer src = seg.buffer.duplicate();
+		long now = System.currentTimeMillis();
+		int pos = 0;
+		int count = 0;
+		while (pos + HEADER_LENGTH <= src.capacity()) {
+			byte status = src.get(pos);
+			if (status != LIVE && status != DONE) {
+				break;
+			}
+			long timestamp = src.getLong(pos + 1);
+			long sequence = src.getLong(pos + 9);
+			int receiverLength = src.getShort(pos + 17);
+			int msgLength = src.getInt(pos + 19);
+			int length = HEADER_LENGTH + receiverLength + msgLength;
+			if (receiverLength < 0 || msgLength < 0
+					|| pos + length > src.capacity()) {
+				// a record torn by a crash ends the segment.
+				break;
+			}
+			this.nextSequence = Math.max(this.nextSequence, sequence + 1);
+			if (status == LIVE) {
+				byte[] receiver = new byte[receiverLength];
+				src.position(pos + HEADER_LENGTH);
+				src.get(receiver);
+				Record r = new Record();
+				try {
+					r.receiver = new String(receiver, "UTF-8");
+				} catch (Exception e) {
+					r.receiver = new String(receiver);
+				}
+				r.timestamp = timestamp;
+				r.sequence = sequence;
+				r.length = length;
+				r.segment = seg;
+				r.offset = pos;
+				seg.records.add(r);
+				seg.liveCount.incrementAndGet();
+				if (this.expired(r, now) || !liveSequences.add(sequence)) {
+					this.markDone(r);
+				} else {
+					ArrayDeque<Record> records = this.index.get(r.receiver);
+					if (records == null) {
+						records = new ArrayDeque<Record>();
+						this.index.put(r.receiver, records);
+					}
+					records.add(r);
+					count++;
+				}
+			}
+			pos += length;
+		}
+		seg.writePos = pos;
+		return count;
+	}
+
+	/**
+	 * Delete a segment without live record. Invoked with appendKey held.
+	 */
+	private void delete(Segment seg) {
+		this.segments.remove(seg.id);
+		try {
+			seg.channel.close();
+		} catch (Exception e) {
+		}
+		if (!seg.file.delete()) {
+			System.out.println("[EXCEPTION] Failed to delete " + seg.file);
+		}
+	}
+}
@@ -1,7 +1,9 @@
 /**
- * OfflineUserKicker thread. Periodically wake up to check users' last alive
- * time. And kick out who is muted for a long time.
- * 
+ * OfflineUserKicker thread. Wake up every tick of the timing wheel to check
+ * the users whose deadline has come, and kick out who is muted for a long
+ * time. Every OFFLINEFLUSH it forces the offline message log to the disk,
+ * and every TIMEOUT it also logs the outbox statistics and compacts the log.
+ *
  * @author Chao Chen cc3736
  *
  */
@@ -13,12 +15,27 @@ public class OfflineUserKickerThread extends Thread {
 	}
 
 	public void run() {
+		long nextHousekeeping = System.currentTimeMillis()
+				+ ServerConfig.TIMEOUT * 1000L;
+		long nextFlush = System.currentTimeMillis()
+				+ ServerConfig.OFFLINEFLUSH;
 		while (true) {
 			try {
-				Thread.sleep(ServerConfig.TIMEOUT * 1000);
+				Thread.sleep(ServerConfig.LIVENESSTICK);
 			} catch (Exception e) {
 			}
 			this.infoCenter.checkAliveUser();
+			if (System.currentTimeMillis() >= nextFlush) {
+				this.infoCenter.flushOfflineMsg();
+				nextFlush = System.currentTimeMillis()
+						+ ServerConfig.OFFLINEFLUSH;
+			}
+			if (System.currentTimeMillis() >= nextHousekeeping) {
+				this.infoCenter.logOutboxStats();
+				this.infoCenter.compactOfflineMsg();
+				nextHousekeeping = System.currentTimeMillis()
+						+ ServerConfig.TIMEOUT * 1000L;
+			}
 		}
 	}
 }
@@ -1,8 +1,13 @@
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Chat Room server identity.
@@ -11,8 +16,13 @@ import java.net.Socket;
  *
  */
 public class Server {
-	private ServerSocket welcomeSocket; // the socket to accept connections from
-										// clients.
+	private ServerSocketChannel welcomeChannel; // the non-blocking channel to
+												// accept connections from
+												// clients.
+	private Selector acceptSelector; // selector to wait for new connections.
+	private ChannelIOThread[] ioThreads; // threads to read and write the
+											// accepted connections.
+	private ExecutorService workers; // worker pool to process the messages.
 	private InfoCenter infoCenter; // information center to store all the
 									// runtime informations.
 	private OfflineUserKickerThread liveHandler; // handler to deal with muted users
@@ -21,21 +31,43 @@ public class Server {
 	public Server(int portNumber) {
 		readConfigFile();
 		try {
-			welcomeSocket = new ServerSocket(portNumber);
+			welcomeChannel = ServerSocketChannel.open();
+			welcomeChannel.socket().bind(new InetSocketAddress(portNumber));
+			welcomeChannel.configureBlocking(false);
+			acceptSelector = Selector.open();
+			welcomeChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
 		} catch (Exception e) {
 			System.out.println("[EXCEPTION] Failed to set up server at port " + portNumber
 					+ ". Try another port.");
 			System.exit(-1);
 		}
 		infoCenter = new InfoCenter();
+		workers = Executors.newFixedThreadPool(ServerConfig.WORKERTHREADS);
+		ioThreads = new ChannelIOThread[ServerConfig.IOTHREADS];
+		try {
+			for (int i = 0; i < ioThreads.length; i++) {
+				ioThreads[i] = new ChannelIOThread(infoCenter, workers);
+				ioThreads[i].start();
+			}
+		} catch (Exception e) {
+			System.out.println("[EXCEPTION] Failed to start the I/O threads.");
+			System.exit(-1);
+		}
 		liveHandler = new OfflineUserKickerThread(infoCenter);
 		liveHandler.start();
 		System.out.println("[INFO] Server is started.");
+		int next = 0;
 		while (true) {
 			try {
-				Socket connectionSocket = welcomeSocket.accept();
-				if (connectionSocket.isConnected()) {
-					new SessionThread(connectionSocket, infoCenter).start();
+				acceptSelector.select();
+				acceptSelector.selectedKeys().clear();
+				SocketChannel channel;
+				while ((channel = welcomeChannel.accept()) != null) {
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+					// assign the connections to the I/O threads in turn.
+					ioThreads[next].addChannel(channel);
+					next = (next + 1) % ioThreads.length;
 				}
 			} catch (Exception e) {
 				System.out.println("[EXCEPTION] Erorr occurs when accepting a connection.");
@@ -62,8 +94,47 @@ public class Server {
 					ServerConfig.BLOCKTIME = Integer.valueOf(tokens[2]);
 				} else if (tokens[0].equals("TIMEOUT")) {
 					ServerConfig.TIMEOUT = Integer.valueOf(tokens[2]);
+				} else if (tokens[0].equals("LIVENESSTICK")) {
+					ServerConfig.LIVENESSTICK = Math.max(1,
+							Integer.valueOf(tokens[2]));
 				} else if (tokens[0].equals("LOGINATTEMPMAX")) {
 					ServerConfig.LOGINATTEMPMAX = Integer.valueOf(tokens[2]);
+				} else if (tokens[0].equals("IOTHREADS")) {
+					ServerConfig.IOTHREADS = Math.max(1,
+							Integer.valueOf(tokens[2]));
+				} else if (tokens[0].equals("WORKERTHREADS")) {
+					ServerConfig.WORKERTHREADS = Math.max(1,
+							Integer.valueOf(tokens[2]));
+				} else if (tokens[0].equals("WRITERTHREADS")) {
+					ServerConfig.WRITERTHREADS = Math.max(1,
+							Integer.valueOf(tokens[2]));
+				} else if (tokens[0].equals("OUTBOXSIZE")) {
+					ServerConfig.OUTBOXSIZE = Math.max(1,
+							Integer.valueOf(tokens[2]));
+				} else if (tokens[0].equals("OUTBOXPOLICY")) {
+					if (tokens[2].equals(FanOutEngine.DROPOLDEST)
+							|| tokens[2].equals(FanOutEngine.DROPNEWEST)
+							|| tokens[2].equals(FanOutEngine.BLOCK)) {
+						ServerConfig.OUTBOXPOLICY = tokens[2];
+					}
+				} else if (tokens[0].equals("OUTBOXWAIT")) {
+					ServerConfig.OUTBOXWAIT = Integer.valueOf(tokens[2]);
+				} else if (tokens[0].equals("OFFLINEDIR")) {
+					ServerConfig.OFFLINEDIR = tokens[2];
+				} else if (tokens[0].equals("OFFLINEQUOTA")) {
+					ServerConfig.OFFLINEQUOTA = Math.max(1,
+							Integer.valueOf(tokens[2]));
+				} else if (tokens[0].equals("OFFLINETTL")) {
+					ServerConfig.OFFLINETTL = Integer.valueOf(tokens[2]);
+				} else if (tokens[0].equals("OFFLINEFLUSH")) {
+					ServerConfig.OFFLINEFLUSH = Math.max(1,
+							Integer.valueOf(tokens[2]));
+				} else if (tokens[0].equals("OFFLINEBATCH")) {
+					ServerConfig.OFFLINEBATCH = Math.max(1,
+							Integer.valueOf(tokens[2]));
+				} else if (tokens[0].equals("CONNECTTIMEOUT")) {
+					ServerConfig.CONNECTTIMEOUT = Math.max(1,
+							Integer.valueOf(tokens[2]));
 				}
 			}
 			br.close();
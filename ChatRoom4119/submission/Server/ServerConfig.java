@@ -5,9 +5,51 @@ public class ServerConfig {
 	
 	//If the server has not heard from a client for TIMEOUT(s), the client will be labeled as logged off and kicked out from the Chat Room.
 	public static int TIMEOUT = 40;
+
+	//Precision in milliseconds of the timeout check above.
+	public static int LIVENESSTICK = 100;
 	
     public static String CREDENTIALFILE = "credentials.txt";
 	
     //The tolerance of failed logging in. When a user attempt and fail to login for too many time, it will be blocked.
 	public static int LOGINATTEMPMAX = 3;
+
+	//Number of I/O threads that read and write all the client connections.
+	public static int IOTHREADS = 2;
+
+	//Number of worker threads that process the decoded messages.
+	public static int WORKERTHREADS = 8;
+
+	//Number of writer threads that deliver broadcast messages.
+	public static int WRITERTHREADS = 4;
+
+	//How many messages can wait in one user's outbox.
+	public static int OUTBOXSIZE = 256;
+
+	//What to do when a user's outbox is full: DROPOLDEST, DROPNEWEST or BLOCK.
+	public static String OUTBOXPOLICY = FanOutEngine.DROPOLDEST;
+
+	//How long in milliseconds a sender waits for room in a full outbox under the BLOCK policy.
+	public static int OUTBOXWAIT = 100;
+
+	//Directory of the offline message log.
+	public static String OFFLINEDIR = "offline";
+
+	//How many offline messages can be stored for one user. The oldest ones are dropped beyond this.
+	public static int OFFLINEQUOTA = 1000;
+
+	//Time in seconds an offline message is kept before it expires.
+	public static int OFFLINETTL = 7 * 24 * 3600;
+
+	//Size in bytes of one segment file of the offline message log.
+	public static int OFFLINESEGMENTSIZE = 4 * 1024 * 1024;
+
+	//Interval in milliseconds to force the offline message log to the disk.
+	public static int OFFLINEFLUSH = 1000;
+
+	//How many offline messages are packed into one batch at login.
+	public static int OFFLINEBATCH = 500;
+
+	//Timeout in milliseconds to connect to a client in one-shot mode.
+	public static int CONNECTTIMEOUT = 2000;
 }
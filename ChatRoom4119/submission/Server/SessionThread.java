@@ -1,57 +1,71 @@
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.UUID;
 
 /**
- * A thread to deal with one connection.
+ * The processor of one connection. It is run on the worker pool whenever the
+ * I/O thread has decoded new messages from the connection, and processes them
+ * one by one in order.
  * 
  * @author Chao Chen cc3736
  *
  */
-public class SessionThread extends Thread {
-	Socket connectionSocket;
+public class SessionThread implements Runnable {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Room in a frame for the UUID header and the batch header.
+	private static final int BATCH_BYTES = Frame.MAX_LENGTH - 64;
+
+	ChannelConnection connection;
 	InfoCenter infoCenter;
 	ClientInfoCell clientHandler;
-	BufferedReader fromSocket;
-	PrintWriter toSocket;
 	String userName;
+	boolean firstLineProcessed = false;
+	boolean isSession = false;
 
-	public SessionThread(Socket connectionSocket, InfoCenter infoCenter) {
-		this.connectionSocket = connectionSocket;
+	public SessionThread(ChannelConnection connection, InfoCenter infoCenter) {
+		this.connection = connection;
 		this.infoCenter = infoCenter;
 	}
 
 	public void run() {
+		do {
+			String line;
+			while ((line = connection.pollInbound()) != null) {
+				processInbound(line);
+			}
+			if (connection.pollClosed()) {
+				connectionClosed();
+			}
+		} while (connection.finishRound());
+	}
+
+	/**
+	 * Method to process one message decoded from the connection.
+	 * 
+	 * @param line
+	 *            : the message line.
+	 */
+	public void processInbound(String line) {
 		try {
-			fromSocket = new BufferedReader(new InputStreamReader(
-					connectionSocket.getInputStream()));
-			String line = fromSocket.readLine();
-			if (line.startsWith(Protocol.HELLO)) {
-				// A login request.
-				System.out.println("[MSG RECEIVED][LOGIN REQUEST]: " + line);
-				processLogIn(line);
+			if (this.firstLineProcessed) {
+				// a frame of the persistent session.
+				processLine(line);
 			} else {
-				fromSocket.close();
-				connectionSocket.close();
-				// Parse the message header to the corresponding username.
-				UUID msgUUID = UUID.fromString(line.split(" ")[0]);
-				String name = infoCenter.getUserFromUUID(msgUUID);
-				if (name != null) {
-					this.userName = name;
-					this.clientHandler = infoCenter.getUserHandler(name);
-					// refresh the last alive signal.
-					this.clientHandler.setLastLiveTime(new Date().getTime());
-					// process msg from the client.
-					System.out.println("[MSG RECEIVED][FROM " + name + "]: "
-							+ line.split(" ", 2)[1]);
-					processMsg(line.split(" ", 2)[1]);
+				this.firstLineProcessed = true;
+				if (line.startsWith(Protocol.HELLO)) {
+					// A login request.
+					System.out.println("[MSG RECEIVED][LOGIN REQUEST]: "
+							+ line);
+					processLogIn(line);
+				} else if (Frame.isSessionRequest(line)) {
+					// A request to keep the connection as a persistent
+					// session.
+					processSession(UUID.fromString(line.split(" ")[0]));
 				} else {
-					System.out.println("[MSG RECEIVED][NOT PARSED]: " + line);
+					connection.close();
+					processLine(line);
 				}
 			}
 			// unidentified msg will not be processed.
@@ -59,6 +73,7 @@ public class SessionThread extends Thread {
 			if (this.userName == null) {
 				System.out
 						.println("[EXCEPTION] Error occurs when dealing with a new socket connection.");
+				connection.close();
 			} else {
 				System.out
 						.println("[EXCEPTION] Error occurs when dealing with message from user "
@@ -67,6 +82,83 @@ public class SessionThread extends Thread {
 		}
 	}
 
+	/**
+	 * Method to process one message line with the UUID header.
+	 * 
+	 * @param line
+	 *            : the message read from the socket or the session.
+	 * @throws Exception
+	 */
+	public void processLine(String line) throws Exception {
+		// Parse the message header to the corresponding username.
+		UUID msgUUID = UUID.fromString(line.split(" ")[0]);
+		String name = infoCenter.getUserFromUUID(msgUUID);
+		ClientInfoCell handler = (name == null) ? null : infoCenter
+				.getUserHandler(name);
+		if (handler != null) {
+			this.userName = name;
+			this.clientHandler = handler;
+			// refresh the last alive signal.
+			this.clientHandler.setLastLiveTime(new Date().getTime());
+			// process msg from the client.
+			System.out.println("[MSG RECEIVED][FROM " + name + "]: "
+					+ line.split(" ", 2)[1]);
+			processMsg(line.split(" ", 2)[1]);
+		} else {
+			System.out.println("[MSG RECEIVED][NOT PARSED]: " + line);
+		}
+	}
+
+	/**
+	 * Method to open a persistent session. The connection is acknowledged
+	 * with a SESSIONACCEPTED frame and bound to the user's information cell.
+	 * Every following frame is processed as a message line until the
+	 * connection is closed by either side.
+	 * 
+	 * @param msgUUID
+	 *            : the header identifier issued to the user when logging in.
+	 * @throws Exception
+	 */
+	public void processSession(UUID msgUUID) throws Exception {
+		String name = infoCenter.getUserFromUUID(msgUUID);
+		ClientInfoCell handler = (name == null) ? null : infoCenter
+				.getUserHandler(name);
+		if (handler == null) {
+			System.out.println("[MSG RECEIVED][NOT PARSED]: " + msgUUID + " "
+					+ Protocol.SESSION);
+			connection.close();
+			return;
+		}
+		this.userName = name;
+		this.clientHandler = handler;
+		this.isSession = true;
+		this.clientHandler.setLastLiveTime(new Date().getTime());
+		connection.sendFrame(msgUUID.toString() + " "
+				+ Protocol.SESSIONACCEPTED);
+		this.clientHandler.attachSession(connection);
+		System.out.println("[INFO] Session of user " + name + " is opened.");
+	}
+
+	/**
+	 * Invoked in the round after the connection is closed, never at the same
+	 * time as the messages of the connection are processed. If it was a
+	 * persistent session, it is unbound from the user, and the messages that
+	 * were queued but never written are delivered again in one-shot mode or
+	 * kept as offline messages.
+	 */
+	public void connectionClosed() {
+		if (!this.isSession) {
+			return;
+		}
+		this.clientHandler.detachSession(connection);
+		System.out.println("[INFO] Session of user " + userName
+				+ " is closed.");
+		ArrayList<String> unsent = connection.drainUnsent();
+		for (String msg : unsent) {
+			this.clientHandler.resendMsg(msg.split(" ", 2)[1]);
+		}
+	}
+
 	/**
 	 * Method to process the LogIn procedure.
 	 * 
@@ -76,15 +168,10 @@ public class SessionThread extends Thread {
 	 */
 	public void processLogIn(String line) throws Exception {
 		String msgToClient;
-		toSocket = new PrintWriter(new OutputStreamWriter(
-				connectionSocket.getOutputStream()), true);
 		if (line.split(" ").length != 4) {
 			msgToClient = "" + Protocol.RETRY;
-			toSocket.println(msgToClient);
+			connection.replyAndClose(msgToClient);
 			System.out.println("[MSG SENT]: " + msgToClient);
-			toSocket.close();
-			fromSocket.close();
-			connectionSocket.close();
 			return;
 		}
 
@@ -95,44 +182,29 @@ public class SessionThread extends Thread {
 		if (infoCenter.isInBlockList(userName)) {
 			// The user is blocked for too many times of failed attempts.
 			msgToClient = "" + Protocol.USERBLOCKED;
-			toSocket.println(msgToClient);
+			connection.replyAndClose(msgToClient);
 			System.out.println("[MSG SENT]: " + msgToClient);
-			toSocket.close();
-			fromSocket.close();
-			connectionSocket.close();
 		} else if (infoCenter.checkAuthFile(userName, passWord) == true) {
 			infoCenter.clearFailedCount(userName);
 			// generate a header identifier for the user.
 			UUID uuid = UUID.randomUUID();
-			msgToClient = "" + Protocol.LOGINSUCCESS + " " + uuid.toString();
-			System.out.println("[MSG SENT][TO " + userName + "]: "
-					+ msgToClient);
-			toSocket.println(msgToClient);
-			toSocket.close();
-			fromSocket.close();
-			connectionSocket.close();
+			// register the user before replying, so that the client can open
+			// its persistent session right after the reply.
 			loginCheck(userName);
 			ClientInfoCell cl = new ClientInfoCell(this.infoCenter, userName,
-					uuid, this.connectionSocket.getInetAddress().toString()
-							.split("/")[1], cliRecPort);
+					uuid, connection.getRemoteIP(), cliRecPort);
 			infoCenter.addHandler(cl);
 			infoCenter.addUserUUID(userName, uuid);
-			// Check and send offline messages.
-			if (infoCenter.hasOfflineMsg(userName)) {
-				ArrayList<String> offlineMsgs = infoCenter
-						.getOfflineMsg(userName);
-				for (String msg : offlineMsgs) {
-					cl.sendMsg(msg);
-				}
-			}
+			msgToClient = "" + Protocol.LOGINSUCCESS + " " + uuid.toString();
+			System.out.println("[MSG SENT][TO " + userName + "]: "
+					+ msgToClient);
+			connection.replyAndClose(msgToClient);
+			sendOfflineMsg(cl);
 		} else {
 			// user name or password incorrect.
 			msgToClient = "" + Protocol.RETRY;
-			toSocket.println(msgToClient);
+			connection.replyAndClose(msgToClient);
 			System.out.println("[MSG SENT]: " + msgToClient);
-			toSocket.close();
-			fromSocket.close();
-			connectionSocket.close();
 			// Count up failed login attempts.
 			if (infoCenter.addFailedCount(userName)) {
 				infoCenter.addToBlockList(userName);
@@ -140,6 +212,54 @@ public class SessionThread extends Thread {
 		}
 	}
 
+	/**
+	 * Send the offline messages of a user who just logged in. They are
+	 * packed into OFFLINEBATCH messages of at most ServerConfig.OFFLINEBATCH
+	 * entries that fit in one frame, so a long backlog costs a few
+	 * connections instead of one per message. A batch that fails to be sent
+	 * is stored again, so only the messages stored before now are taken out.
+	 * 
+	 * @param cl
+	 *            information cell of the user.
+	 */
+	private void sendOfflineMsg(ClientInfoCell cl) {
+		String userName = cl.getUserName();
+		int pending = infoCenter.countOfflineMsg(userName);
+		StringBuilder batch = new StringBuilder();
+		String lastMsg = null;
+		int count = 0;
+		int bytes = 0;
+		String offlineMsg;
+		while (pending-- > 0
+				&& (offlineMsg = infoCenter.pollOfflineMsg(userName)) != null) {
+			int size = offlineMsg.getBytes(UTF8).length + 1;
+			if (count > 0
+					&& (count >= ServerConfig.OFFLINEBATCH || bytes + size > BATCH_BYTES)) {
+				sendBatch(cl, batch, count, lastMsg);
+				batch.setLength(0);
+				count = 0;
+				bytes = 0;
+			}
+			batch.append('\n').append(offlineMsg);
+			lastMsg = offlineMsg;
+			count++;
+			bytes += size;
+		}
+		if (count > 0) {
+			sendBatch(cl, batch, count, lastMsg);
+		}
+	}
+
+	private void sendBatch(ClientInfoCell cl, StringBuilder batch, int count,
+			String lastMsg) {
+		if (count == 1) {
+			// a single message needs no batch header.
+			cl.sendMsg(lastMsg);
+		} else {
+			cl.sendMsg(Protocol.OFFLINEBATCH + " " + count + batch);
+		}
+	}
+
 	/**
 	 * Method to process user's message(excluding log in procedures).
 	 * 
@@ -198,7 +318,7 @@ public class SessionThread extends Thread {
 				}
 			}
 		} else if (line.equals(Protocol.LOGOUT)) {
-			this.infoCenter.removeUserHandler(this.userName);
+			this.infoCenter.removeUserHandler(this.clientHandler);
 			this.infoCenter.removeUserUUID(this.clientHandler.getUUID());
 			// broadcast log off notification.
 			this.infoCenter.broadcastMessage("" + Protocol.LOGOFFNOTIFY + " "
@@ -309,10 +429,11 @@ public class SessionThread extends Thread {
 		if (infoCenter.isLoggedIn(userName)) {
 			// get the handler
 			ClientInfoCell formerHandler = infoCenter.getUserHandler(userName);
-			// remove former information and send message to notify the log off.
-			infoCenter.removeUserUUID(formerHandler.getUUID());
-			infoCenter.removeUserHandler(userName);
+			// send message to notify the log off while the former session is
+			// still open, then remove former information.
 			formerHandler.sendMsg("" + Protocol.LOGINOTHERPLACE);
+			infoCenter.removeUserUUID(formerHandler.getUUID());
+			infoCenter.removeUserHandler(formerHandler);
 		}
 		// broadcast log in notification to other users.
 		this.infoCenter.broadcastMessage("" + Protocol.LOGINNOTIFY + " "
@@ -0,0 +1,106 @@
+import java.util.ArrayList;
+
+/**
+ * Hashed timing wheel of the users' liveness deadlines. The time is cut into
+ * ticks of ServerConfig.LIVENESSTICK milliseconds, and a deadline is put in
+ * the slot of its tick modulo the number of slots. Advancing the wheel only
+ * looks at the slots of the ticks passed, so the cost does not grow with the
+ * number of online users.
+ *
+ * Every online user has exactly one entry. Messages from the user do not
+ * touch the wheel; they only refresh its last alive time. When the entry
+ * comes due, the InfoCenter compares the last alive time with the timeout and
+ * either kicks the user out or schedules the entry again at the new deadline.
+ *
+ * @author Chao Chen cc3736
+ *
+ */
+public class TimingWheel {
+	private static final int SLOTS = 512;
+
+	/**
+	 * A user whose liveness should be checked at the deadline.
+	 */
+	private static class Entry {
+		ClientInfoCell cell;
+		long deadlineTick;
+	}
+
+	private long tickLength;
+
+	// The entries of every slot, guarded by wheelKey.
+	private ArrayList<ArrayList<Entry>> slots = new ArrayList<ArrayList<Entry>>();
+
+	// The last tick whose slot has been taken out, guarded by wheelKey.
+	private long currentTick;
+
+	private Object wheelKey = new Object();
+
+	/**
+	 * @param tickLength
+	 *            length of a tick in milliseconds.
+	 */
+	public TimingWheel(long tickLength) {
+		this.tickLength = Math.max(1, tickLength);
+		for (int i = 0; i < SLOTS; i++) {
+			this.slots.add(new ArrayList<Entry>());
+		}
+		this.currentTick = System.currentTimeMillis() / this.tickLength;
+	}
+
+	/**
+	 * Check the user at the deadline. A deadline that has already passed is
+	 * checked at the next tick.
+	 *
+	 * @param cell
+	 *            information cell of the user.
+	 * @param deadline
+	 *            time in milliseconds.
+	 */
+	public void schedule(ClientInfoCell cell, long deadline) {
+		Entry entry = new Entry();
+		entry.cell = cell;
+		entry.deadlineTick = deadline / this.tickLength;
+		synchronized (this.wheelKey) {
+			this.add(entry);
+		}
+	}
+
+	private void add(Entry entry) {
+		long tick = Math.max(entry.deadlineTick, this.currentTick + 1);
+		this.slots.get((int) (tick % SLOTS)).add(entry);
+	}
+
+	/**
+	 * Move the wheel up to the current time and take out the entries that
+	 * are due. Entries that belong to a later round stay in the wheel.
+	 *
+	 * @param now
+	 *            current time in milliseconds.
+	 * @return the users to be checked.
+	 */
+	public ArrayList<ClientInfoCell> advance(long now) {
+		ArrayList<ClientInfoCell> due = new ArrayList<ClientInfoCell>();
+		long targetTick = now / this.tickLength;
+		synchronized (this.wheelKey) {
+			// after a long pause every slot is visited at most once.
+			if (targetTick - this.currentTick > SLOTS) {
+				this.currentTick = targetTick - SLOTS;
+			}
+			while (this.currentTick < targetTick) {
+				this.currentTick++;
+				int index = (int) (this.currentTick % SLOTS);
+				ArrayList<Entry> slot = this.slots.get(index);
+				this.slots.set(index, new ArrayList<Entry>());
+				for (Entry entry : slot) {
+					if (entry.deadlineTick <= targetTick) {
+						due.add(entry.cell);
+					} else {
+						this.add(entry);
+					}
+				}
+			}
+		}
+		return due;
+	}
+}
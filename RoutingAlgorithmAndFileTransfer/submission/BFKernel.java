@@ -1,18 +1,25 @@
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Date;
-import java.util.Set;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The core data structure of Bellman Ford client. All the informations are
@@ -31,41 +38,199 @@ public class BFKernel {
 
 	String myAddress; // ip:port i.e. 192.168.0.8:1234 or 127.0.0.1:1234
 	int port = -1; // port number of the receiving socket.
-	DatagramSocket receiveSocket; // udp socket to receive message.
+	DatagramSocket receiveSocket; // udp socket to receive and send message.
 	int timeout = -1; // timeout interval to send UPDATE_ROUTE message.
 
 	/**
-	 * <fileName, offset>.
+	 * <sourceAddress#transferId, receiver>.
 	 * 
-	 * store the name of file under receiving and the total size of received
-	 * file data.
+	 * store the files under receiving.
 	 */
-	ConcurrentHashMap<String, Long> fileReceivingMap = new ConcurrentHashMap<String, Long>();
+	ConcurrentHashMap<String, FileReceiver> fileReceivers = new ConcurrentHashMap<String, FileReceiver>();
 
 	/**
-	 * <neighborAddress, cost>.
+	 * <transferId, sender>.
 	 * 
-	 * store the address of the neighbor nodes and the cost of the direct links
-	 * to them.
+	 * store the files under sending.
 	 */
-	ConcurrentHashMap<String, Double> neighbors = new ConcurrentHashMap<String, Double>();
+	ConcurrentHashMap<Integer, FileSender> fileSenders = new ConcurrentHashMap<Integer, FileSender>();
 
 	/**
-	 * <neighborAddress, cost>.
+	 * id of the next transfer to send. Starts at random, so that a restarted
+	 * client does not reuse the ids of its transfers still known to the
+	 * receivers.
+	 */
+	AtomicInteger nextTransferId = new AtomicInteger(
+			new Random().nextInt() & 0x7FFFFFFF);
+
+	/**
+	 * threads to run the transfers, so that the CLI is not blocked. At most
+	 * MAX_TRANSFERS transfers are sent at a time, the others wait.
+	 */
+	ExecutorService transferExecutor = Executors.newFixedThreadPool(
+			PA2Util.MAX_TRANSFERS, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "FileTransfer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/**
+	 * <destinationAddress, estimator>.
+	 * 
+	 * store the round trip time estimated for each destination files are
+	 * sent to.
+	 */
+	ConcurrentHashMap<String, RttEstimator> rttEstimators = new ConcurrentHashMap<String, RttEstimator>();
+
+	/**
+	 * Marks of the nextHop table. A node that is known but not yet a
+	 * destination in the routing table is UNKNOWN_ROUTE, an unreachable
+	 * destination is NO_ROUTE. Otherwise the next hop is the id of a neighbor.
+	 */
+	static final int UNKNOWN_ROUTE = -2;
+	static final int NO_ROUTE = -1;
+
+	/**
+	 * mark of heardSequence before a sequenced vector is received.
+	 */
+	static final int NO_SEQUENCE = -1;
+
+	/**
+	 * All the routing tables below are arrays indexed by the node id given by
+	 * the NodeIndex, and are guarded by tableKey.
+	 */
+	Object tableKey = new Object();
+
+	/**
+	 * <address, id> of all the known nodes. myAddress is id 0.
+	 */
+	NodeIndex nodes = new NodeIndex();
+	int myId;
+
+	/**
+	 * length of the arrays below. Grows when new nodes are known.
+	 */
+	int capacity = 16;
+
+	/**
+	 * [node][destination] = cost.
+	 * 
+	 * Implementation of Bellman Ford cost table described in the course
+	 * slides. The row of myId is my distance vector, the row of a neighbor is
+	 * the last distance vector received from it, other rows are null. A cost
+	 * that is not known is INFINTE_COST.
+	 */
+	double[][] costMatrix = new double[capacity][];
+
+	/**
+	 * the ids of the neighbor nodes.
+	 */
+	int[] neighborIds = new int[0];
+
+	/**
+	 * [neighbor] = cost.
 	 * 
-	 * store the address of the neighbor nodes and the initial cost of the
-	 * direct links read from the configuration file. Used to restore link cost
-	 * when LINKUP.
+	 * store the cost of the direct links to the neighbors.
 	 */
-	ConcurrentHashMap<String, Double> neighborsBackup = new ConcurrentHashMap<String, Double>();
+	double[] linkCost = new double[capacity];
 
 	/**
-	 * <destinationAddress, nextHop>.
+	 * [neighbor] = cost.
 	 * 
-	 * store the routing table. if the destination is unreachable, the nextHop
-	 * is defined as PA2Util.UNREACHABLE
+	 * store the initial cost of the direct links read from the configuration
+	 * file. Used to restore link cost when LINKUP.
+	 */
+	double[] linkCostBackup = new double[capacity];
+
+	/**
+	 * [destination] = next hop.
+	 * 
+	 * store the routing table, UNKNOWN_ROUTE or NO_ROUTE as described above.
+	 */
+	int[] nextHop = new int[capacity];
+
+	/**
+	 * [neighbor] = lastHeardTime.
+	 * 
+	 * record the time when we receive the latest packet from the neighbor. used
+	 * by the timeout dead node checker
+	 */
+	long[] lastHeardTime = new long[capacity];
+
+	/**
+	 * spare row to receive the next distance vector of a neighbor, so that no
+	 * row is allocated for an update.
 	 */
-	ConcurrentHashMap<String, String> routingTable = new ConcurrentHashMap<String, String>();
+	double[] spareRow = new double[capacity];
+
+	/**
+	 * the destinations whose cost or next hop has changed since the last time
+	 * the distance vectors were sent to the neighbors.
+	 */
+	BitSet changedRoutes = new BitSet();
+
+	/**
+	 * [neighbor] = sequence number.
+	 * 
+	 * sequence number of the latest update, full vector or delta, sent to the
+	 * neighbor.
+	 */
+	int[] sentSequence = new int[capacity];
+
+	/**
+	 * [neighbor] = sequence number.
+	 * 
+	 * sequence number of the latest update received from the neighbor, or
+	 * NO_SEQUENCE. A delta is applied only if it is the next one.
+	 */
+	int[] heardSequence = new int[capacity];
+
+	/**
+	 * the neighbors that must be sent the full vector instead of the next
+	 * delta, because they have missed some deltas while the link is down.
+	 */
+	BitSet fullPending = new BitSet();
+
+	/**
+	 * the neighbors that have been asked for a full vector and not yet sent
+	 * one.
+	 */
+	BitSet resyncRequested = new BitSet();
+
+	/**
+	 * the destinations whose cost in a received vector has changed. Scratch
+	 * space of updateRouteFromMsg.
+	 */
+	BitSet changedDsts = new BitSet();
+
+	/**
+	 * buffer reused to encode the distance vectors.
+	 */
+	ByteBuffer vectorBuffer;
+
+	/**
+	 * id of the next distance vector sent, shared by its fragments.
+	 */
+	int vectorSequence = 0;
+
+	/**
+	 * the fragmented distance vectors under reassembly.
+	 */
+	VectorReassembler reassembler = new VectorReassembler();
+
+	/**
+	 * put every entry of a received vector in the spare row. The node is
+	 * interned before spareRow is read, since interning a new node may grow
+	 * it.
+	 */
+	VectorCodec.EntryHandler spareRowFiller = new VectorCodec.EntryHandler() {
+		public void onEntry(String address, double cost) {
+			int id = internNode(address);
+			spareRow[id] = cost;
+		}
+	};
 
 	/**
 	 * <neighborAddress, proxyAddress>.
@@ -76,20 +241,33 @@ public class BFKernel {
 	ConcurrentHashMap<String, String> proxyMap = new ConcurrentHashMap<String, String>();
 
 	/**
-	 * <neighborAddress|myAddress, <destinationAddress, cost>>.
+	 * <ip:port, socket address>.
 	 * 
-	 * Implementation of Bellman Ford cost table described in the course slides
-	 * in HashMap form
+	 * cache of the resolved addresses of the hosts that packets are sent to.
 	 */
-	ConcurrentHashMap<String, ConcurrentHashMap<String, Double>> bfCostTable = new ConcurrentHashMap<String, ConcurrentHashMap<String, Double>>();
+	ConcurrentHashMap<String, InetSocketAddress> hostAddressCache = new ConcurrentHashMap<String, InetSocketAddress>();
 
 	/**
-	 * <neighborAddress, lastHeardTime>.
-	 * 
-	 * record the time when we receive the latest packet from the neighbor. used
-	 * by the timeout dead node checker
+	 * packet of each thread to send, whose buffer is reused for every packet
+	 * the thread sends.
 	 */
-	ConcurrentHashMap<String, Long> lastHeardTimeTable = new ConcurrentHashMap<String, Long>();
+	ThreadLocal<DatagramPacket> sendPacket = new ThreadLocal<DatagramPacket>() {
+		@Override
+		protected DatagramPacket initialValue() {
+			return new DatagramPacket(new byte[PA2Util.MSS], PA2Util.MSS);
+		}
+	};
+
+	/**
+	 * packet of each thread to forward, pointed at the receive buffer of the
+	 * packet being forwarded.
+	 */
+	ThreadLocal<DatagramPacket> forwardPacket = new ThreadLocal<DatagramPacket>() {
+		@Override
+		protected DatagramPacket initialValue() {
+			return new DatagramPacket(new byte[0], 0);
+		}
+	};
 
 	/**
 	 * the time when the client sent out the latest UPDATE_ROUTE message to
@@ -155,36 +333,152 @@ public class BFKernel {
 		myAddress = InetAddress.getLocalHost().getHostAddress() + ":" + port;
 
 		timeout = Integer.valueOf(pair[1]);
-		bfCostTable.put(myAddress, new ConcurrentHashMap<String, Double>());
+		ArrayList<String> neighborAddresses = new ArrayList<String>();
+		ArrayList<Double> costs = new ArrayList<Double>();
 		String neighborAddress = "";
-		long currentTime = new Date().getTime();
 		while ((line = br.readLine()) != null) {
 			if(line.length()==0){
 				break;
 			}
 			pair = line.split(" ");
 			neighborAddress = pair[0];
-			double cost = Double.valueOf(pair[1]);
-
-			neighbors.put(neighborAddress, cost);
-			neighborsBackup.put(neighborAddress, cost);
-			routingTable.put(neighborAddress, neighborAddress);
-			bfCostTable.get(myAddress).put(neighborAddress, cost);
-			bfCostTable.put(neighborAddress,
-					new ConcurrentHashMap<String, Double>());
-			lastHeardTimeTable.put(neighborAddress, currentTime);
+			neighborAddresses.add(neighborAddress);
+			costs.add(Double.valueOf(pair[1]));
 		}
 		br.close();
 
 		if (neighborAddress.contains("127.0.0.1")) {
 			// for the localhost simulated network environment, convert my
 			// address to the same format
-			String correctAddress = "127.0.0.1:" + port;
-			bfCostTable.put(correctAddress, bfCostTable.get(myAddress));
-			bfCostTable.remove(myAddress);
-			myAddress = correctAddress;
+			myAddress = "127.0.0.1:" + port;
+		}
+
+		Arrays.fill(nextHop, UNKNOWN_ROUTE);
+		Arrays.fill(heardSequence, NO_SEQUENCE);
+		myId = internNode(myAddress);
+		costMatrix[myId] = infiniteRow(capacity);
+		neighborIds = new int[neighborAddresses.size()];
+		long currentTime = new Date().getTime();
+		for (int i = 0; i < neighborIds.length; i++) {
+			int neighbor = internNode(neighborAddresses.get(i));
+			double cost = costs.get(i);
+			neighborIds[i] = neighbor;
+			linkCost[neighbor] = cost;
+			linkCostBackup[neighbor] = cost;
+			nextHop[neighbor] = neighbor;
+			costMatrix[myId][neighbor] = cost;
+			costMatrix[neighbor] = infiniteRow(capacity);
+			lastHeardTime[neighbor] = currentTime;
+		}
+	}
+
+	/**
+	 * a new row of the cost matrix, all of INFINTE_COST.
+	 */
+	private static double[] infiniteRow(int length) {
+		double[] row = new double[length];
+		Arrays.fill(row, PA2Util.INFINTE_COST);
+		return row;
+	}
+
+	/**
+	 * grow the arrays so that ids less than size can be stored. The new
+	 * columns are INFINTE_COST and the new destinations are UNKNOWN_ROUTE.
+	 * 
+	 * @param size
+	 */
+	private void ensureCapacity(int size) {
+		if (size <= capacity) {
+			return;
+		}
+		int oldCapacity = capacity;
+		while (capacity < size) {
+			capacity *= 2;
+		}
+		costMatrix = Arrays.copyOf(costMatrix, capacity);
+		for (int i = 0; i < oldCapacity; i++) {
+			if (costMatrix[i] != null) {
+				costMatrix[i] = Arrays.copyOf(costMatrix[i], capacity);
+				Arrays.fill(costMatrix[i], oldCapacity, capacity,
+						PA2Util.INFINTE_COST);
+			}
+		}
+		linkCost = Arrays.copyOf(linkCost, capacity);
+		linkCostBackup = Arrays.copyOf(linkCostBackup, capacity);
+		nextHop = Arrays.copyOf(nextHop, capacity);
+		Arrays.fill(nextHop, oldCapacity, capacity, UNKNOWN_ROUTE);
+		lastHeardTime = Arrays.copyOf(lastHeardTime, capacity);
+		sentSequence = Arrays.copyOf(sentSequence, capacity);
+		heardSequence = Arrays.copyOf(heardSequence, capacity);
+		Arrays.fill(heardSequence, oldCapacity, capacity, NO_SEQUENCE);
+		spareRow = Arrays.copyOf(spareRow, capacity);
+		Arrays.fill(spareRow, oldCapacity, capacity, PA2Util.INFINTE_COST);
+	}
+
+	/**
+	 * get the id of a node and make room for it in the arrays.
+	 * 
+	 * @param address
+	 * @return id
+	 */
+	private int internNode(String address) {
+		int id = nodes.intern(address);
+		ensureCapacity(nodes.size());
+		return id;
+	}
+
+	/**
+	 * check if a node is a neighbor of this client.
+	 * 
+	 * @param id
+	 * @return true if it is a neighbor.
+	 */
+	private boolean isNeighbor(int id) {
+		return id >= 0 && id != myId && costMatrix[id] != null;
+	}
+
+	/**
+	 * check if an address is a neighbor of this client.
+	 * 
+	 * @param address
+	 * @return true if it is a neighbor.
+	 */
+	public boolean isNeighbor(String address) {
+		synchronized (tableKey) {
+			return isNeighbor(nodes.lookup(address));
 		}
+	}
 
+	/**
+	 * get the cost of the direct link to a neighbor.
+	 * 
+	 * @param address
+	 *            address of the neighbor.
+	 * @return cost; INFINTE_COST if the link is down or it is not a neighbor
+	 */
+	public double getLinkCost(String address) {
+		synchronized (tableKey) {
+			int id = nodes.lookup(address);
+			return isNeighbor(id) ? linkCost[id] : PA2Util.INFINTE_COST;
+		}
+	}
+
+	/**
+	 * get the neighbor to which the data towards the destination is routed.
+	 * 
+	 * @param dst
+	 *            destinationAddress
+	 * @return address of the neighbor; PA2Util.UNREACHABLE if there is no
+	 *         route
+	 */
+	public String getRoute(String dst) {
+		synchronized (tableKey) {
+			int id = nodes.lookup(dst);
+			if (id < 0 || nextHop[id] < 0) {
+				return PA2Util.UNREACHABLE;
+			}
+			return nodes.address(nextHop[id]);
+		}
 	}
 
 	/**
@@ -199,7 +493,7 @@ public class BFKernel {
 	 * @return address of next hop
 	 */
 	public String getNextHop(String dst) {
-		String neighbor = routingTable.get(dst);
+		String neighbor = getRoute(dst);
 		if (proxyMap.containsKey(neighbor)) {
 			return proxyMap.get(neighbor);
 		} else {
@@ -216,19 +510,72 @@ public class BFKernel {
 		StringBuilder sb = new StringBuilder();
 		sb.append(new Date().toString());
 		sb.append(" Distance vector list is:");
-		for (String dst : routingTable.keySet()) {
+		synchronized (tableKey) {
+			for (int dst = 0; dst < nodes.size(); dst++) {
+				if (dst == myId || nextHop[dst] == UNKNOWN_ROUTE) {
+					continue;
+				}
+				sb.append("\nDestination = ");
+				sb.append(nodes.address(dst));
+				sb.append(", Cost = ");
+				double cost = costMatrix[myId][dst];
+				if (cost < PA2Util.INFINTE_COST) {
+					sb.append(cost);
+				} else {
+					sb.append(PA2Util.INFINITY_TAG);
+				}
+				sb.append(", Link = (");
+				sb.append(nextHop[dst] == NO_ROUTE ? PA2Util.UNREACHABLE
+						: nodes.address(nextHop[dst]));
+				sb.append(")");
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Get the round trip time estimator of a destination, and create it if
+	 * the destination has none.
+	 * 
+	 * @param dst
+	 *            destination ip:port
+	 * @return the estimator
+	 */
+	public RttEstimator getRttEstimator(String dst) {
+		RttEstimator estimator = rttEstimators.get(dst);
+		if (estimator == null) {
+			estimator = new RttEstimator();
+			RttEstimator old = rttEstimators.putIfAbsent(dst, estimator);
+			if (old != null) {
+				estimator = old;
+			}
+		}
+		return estimator;
+	}
+
+	/**
+	 * @return the round trip time estimated for each destination
+	 */
+	public String getRttStats() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(new Date().toString());
+		sb.append(" Round trip time estimates are:");
+		if (rttEstimators.isEmpty()) {
+			sb.append("\nNone.");
+		}
+		for (String dst : rttEstimators.keySet()) {
 			sb.append("\nDestination = ");
 			sb.append(dst);
-			sb.append(", Cost = ");
-			double cost = bfCostTable.get(myAddress).get(dst);
-			if (cost < PA2Util.INFINTE_COST) {
-				sb.append(cost);
-			} else {
-				sb.append(PA2Util.INFINITY_TAG);
-			}
-			sb.append(", Link = (");
-			sb.append(routingTable.get(dst));
-			sb.append(")");
+			sb.append(", ");
+			sb.append(rttEstimators.get(dst));
+		}
+		sb.append("\nFiles under sending are:");
+		if (fileSenders.isEmpty()) {
+			sb.append("\nNone.");
+		}
+		for (FileSender sender : fileSenders.values()) {
+			sb.append("\n");
+			sb.append(sender);
 		}
 		return sb.toString();
 	}
@@ -237,36 +584,127 @@ public class BFKernel {
 	 * encapsulate the message in UDP segment and send it DIRECTLY to the
 	 * destination host
 	 * 
+	 * The packet is sent from the receiving socket, serialized into the
+	 * buffer of the calling thread.
+	 * 
 	 * @param hostAddress
 	 * @param msg
 	 */
 	public void sendToHost(String hostAddress, PA2TCP msg) {
 		try {
-			DatagramSocket clientSocket = new DatagramSocket();
-			InetAddress IPAddress = InetAddress.getByName(hostAddress
-					.split(":")[0]);
-			int port = Integer.valueOf(hostAddress.split(":")[1]);
-			byte[] sendData = msg.serialize();
-			DatagramPacket sendPacket = new DatagramPacket(sendData,
-					sendData.length, IPAddress, port);
-			clientSocket.send(sendPacket);
-			clientSocket.close();
+			DatagramPacket packet = sendPacket.get();
+			byte[] buffer = packet.getData();
+			if (buffer.length < msg.serializedLength()) {
+				buffer = new byte[msg.serializedLength()];
+			}
+			int length = msg.serialize(buffer, 0);
+			packet.setData(buffer, 0, length);
+			packet.setSocketAddress(resolveHost(hostAddress));
+			receiveSocket.send(packet);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * send a received packet to the next hop as it is, without serializing
+	 * it again.
+	 * 
+	 * @param hostAddress
+	 * @param msg
+	 *            packet decoded from the receive buffer
+	 */
+	public void forwardToHost(String hostAddress, PA2TCP msg) {
+		ByteBuffer raw = msg.rawPacket();
+		if (raw == null) {
+			sendToHost(hostAddress, msg);
+			return;
+		}
+		try {
+			DatagramPacket packet = forwardPacket.get();
+			packet.setData(raw.array(), raw.arrayOffset(), raw.limit());
+			packet.setSocketAddress(resolveHost(hostAddress));
+			receiveSocket.send(packet);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * send Distance Vectors to all the active neighbors
+	 * get the socket address of a host, resolved only the first time.
+	 * 
+	 * @param hostAddress
+	 *            ip:port
+	 * @return socket address
+	 * @throws UnknownHostException
+	 */
+	private InetSocketAddress resolveHost(String hostAddress)
+			throws UnknownHostException {
+		InetSocketAddress address = hostAddressCache.get(hostAddress);
+		if (address == null) {
+			String[] hostPort = hostAddress.split(":");
+			address = new InetSocketAddress(InetAddress.getByName(hostPort[0]),
+					Integer.valueOf(hostPort[1]));
+			hostAddressCache.put(hostAddress, address);
+		}
+		return address;
+	}
+
+	/**
+	 * send the full Distance Vectors to all the active neighbors. Used by the
+	 * periodic update.
 	 */
 	public void sendVectorsToNeighbors() {
-		lastUpdateSendTime = new Date().getTime();
-		for (String neighbor : neighbors.keySet()) {
-			if (neighbors.get(neighbor) == PA2Util.INFINTE_COST) {
-				continue;
+		synchronized (tableKey) {
+			lastUpdateSendTime = new Date().getTime();
+			changedRoutes.clear();
+			for (int neighbor : neighborIds) {
+				if (linkCost[neighbor] == PA2Util.INFINTE_COST) {
+					fullPending.set(neighbor);
+					continue;
+				}
+				sendVectorToNeighbor(neighbor);
 			}
-			PA2TCP msg = composeVectorMsg(neighbor);
-			sendToHost(neighbor, msg);
+		}
+	}
+
+	/**
+	 * send the routes changed since the last update to all the active
+	 * neighbors. A neighbor is sent the full vector instead if it has missed
+	 * some updates, or if the delta does not fit in one packet.
+	 */
+	public void sendDeltasToNeighbors() {
+		synchronized (tableKey) {
+			if (changedRoutes.isEmpty()) {
+				return;
+			}
+			for (int neighbor : neighborIds) {
+				if (linkCost[neighbor] == PA2Util.INFINTE_COST) {
+					fullPending.set(neighbor);
+					continue;
+				}
+				PA2TCP msg = fullPending.get(neighbor) ? null
+						: composeDeltaMsg(nodes.address(neighbor));
+				if (msg == null) {
+					sendVectorToNeighbor(neighbor);
+				} else {
+					sendToHost(nodes.address(neighbor), msg);
+				}
+			}
+			changedRoutes.clear();
+		}
+	}
+
+	/**
+	 * send the full Distance Vector to one neighbor.
+	 * 
+	 * @param neighbor
+	 *            id of the neighbor
+	 */
+	private void sendVectorToNeighbor(int neighbor) {
+		fullPending.clear(neighbor);
+		for (PA2TCP msg : composeVectorMsgs(nodes.address(neighbor))) {
+			sendToHost(nodes.address(neighbor), msg);
 		}
 	}
 
@@ -311,9 +749,10 @@ public class BFKernel {
 	 * used in file transfer
 	 * 
 	 * @param dst
+	 * @param ack
 	 */
-	public void sendACKToHost(String dst) {
-		PA2TCP msg = composeTransferACKMsg(dst);
+	public void sendACKToHost(String dst, PA2ACK ack) {
+		PA2TCP msg = composeTransferACKMsg(dst, ack);
 		sendToHost(getNextHop(dst), msg);
 	}
 
@@ -346,36 +785,153 @@ public class BFKernel {
 	 * PA2TCP packet composer, contains ACK
 	 * 
 	 * @param dst
+	 * @param ack
 	 * @return
 	 */
-	public PA2TCP composeTransferACKMsg(String dst) {
+	public PA2TCP composeTransferACKMsg(String dst, PA2ACK ack) {
 		return new PA2TCP(PA2Util.TRANSFER_ACK_TAG, myAddress, dst,
-				(String) null);
+				ack.serialize());
 	}
 
 	/**
-	 * PA2TCP packet composer, contains distance vectors
+	 * PA2TCP packet composer, contains distance vectors. A vector larger than
+	 * one packet is split into fragments.
 	 * 
 	 * @param neighbor
-	 * @return
+	 * @return the packets to be sent in order
+	 */
+	public ArrayList<PA2TCP> composeVectorMsgs(String neighbor) {
+		ArrayList<PA2TCP> msgs = new ArrayList<PA2TCP>();
+		synchronized (tableKey) {
+			int neighborId = nodes.lookup(neighbor);
+			byte[] payload = encodeVector(neighborId,
+					++sentSequence[neighborId]);
+			for (byte[] fragment : VectorCodec.fragment(payload, PA2Util.MSS
+					- PA2TCP.HEADER_LENGTH, vectorSequence++)) {
+				msgs.add(new PA2TCP(PA2Util.UPDATE_ROUTE_TAG, myAddress,
+						neighbor, fragment));
+			}
+		}
+		return msgs;
+	}
+
+	/**
+	 * encode my distance vector to be sent to a neighbor, with the
+	 * destinations routed via that neighbor poisoned.
+	 * 
+	 * @param neighborId
+	 * @param sequence
+	 *            sequence number of the update
+	 * @return payload of UPDATE_ROUTE
 	 */
-	public PA2TCP composeVectorMsg(String neighbor) {
-		String vectorTable = "";
-		for (String dst : routingTable.keySet()) {
-			double cost;
-			if (routingTable.get(dst).equals(neighbor)) {
-				cost = PA2Util.INFINTE_COST;
+	private byte[] encodeVector(int neighborId, int sequence) {
+		int count = 0;
+		boolean packable = PA2Util.BINARY_VECTOR;
+		for (int dst = 0; dst < nodes.size(); dst++) {
+			if (dst != myId && nextHop[dst] != UNKNOWN_ROUTE) {
+				count++;
+				packable &= nodes.packedAddress(dst) >= 0;
+			}
+		}
+		if (!packable) {
+			return encodeTextVector(neighborId);
+		}
+		vectorBuffer = VectorCodec.begin(vectorBuffer, count, sequence);
+		for (int dst = 0; dst < nodes.size(); dst++) {
+			if (dst == myId || nextHop[dst] == UNKNOWN_ROUTE) {
+				continue;
+			}
+			VectorCodec.putEntry(vectorBuffer, nodes.packedAddress(dst),
+					advertisedCost(neighborId, dst));
+		}
+		return Arrays.copyOf(vectorBuffer.array(), vectorBuffer.position());
+	}
+
+	/**
+	 * encode my distance vector in the legacy text form.
+	 * 
+	 * @param neighborId
+	 * @return payload of UPDATE_ROUTE
+	 */
+	private byte[] encodeTextVector(int neighborId) {
+		StringBuilder vectorTable = new StringBuilder();
+		for (int dst = 0; dst < nodes.size(); dst++) {
+			if (dst == myId || nextHop[dst] == UNKNOWN_ROUTE) {
+				continue;
+			}
+			double cost = advertisedCost(neighborId, dst);
+			if (vectorTable.length() > 0) {
+				vectorTable.append(';');
+			}
+			vectorTable.append(nodes.address(dst));
+			vectorTable.append('=');
+			if (cost == PA2Util.INFINTE_COST) {
+				vectorTable.append(PA2Util.INFINITY_TAG);
 			} else {
-				cost = bfCostTable.get(myAddress).get(dst);
+				vectorTable.append(cost);
 			}
-			vectorTable += dst
-					+ "="
-					+ (cost == PA2Util.INFINTE_COST ? PA2Util.INFINITY_TAG
-							: cost) + ";";
 		}
-		vectorTable = vectorTable.substring(0, vectorTable.length() - 1);
-		return new PA2TCP(PA2Util.UPDATE_ROUTE_TAG, myAddress, neighbor,
-				vectorTable);
+		return vectorTable.toString().getBytes();
+	}
+
+	/**
+	 * cost to a destination told to a neighbor. Poisoned reverse: the route
+	 * via the neighbor itself is told as infinity.
+	 */
+	private double advertisedCost(int neighborId, int dst) {
+		if (nextHop[dst] == neighborId) {
+			return PA2Util.INFINTE_COST;
+		}
+		return costMatrix[myId][dst];
+	}
+
+	/**
+	 * PA2TCP packet composer, contains the routes changed since the last
+	 * update.
+	 * 
+	 * @param neighbor
+	 * @return null if the delta cannot be sent in one packet, or the text form
+	 *         is in use
+	 */
+	public PA2TCP composeDeltaMsg(String neighbor) {
+		synchronized (tableKey) {
+			if (!PA2Util.BINARY_VECTOR) {
+				return null;
+			}
+			int neighborId = nodes.lookup(neighbor);
+			int count = 0;
+			for (int dst = changedRoutes.nextSetBit(0); dst >= 0; dst = changedRoutes
+					.nextSetBit(dst + 1)) {
+				if (nodes.packedAddress(dst) < 0) {
+					return null;
+				}
+				count++;
+			}
+			vectorBuffer = VectorCodec.begin(vectorBuffer, count,
+					sentSequence[neighborId] + 1);
+			for (int dst = changedRoutes.nextSetBit(0); dst >= 0; dst = changedRoutes
+					.nextSetBit(dst + 1)) {
+				VectorCodec.putEntry(vectorBuffer, nodes.packedAddress(dst),
+						advertisedCost(neighborId, dst));
+			}
+			if (vectorBuffer.position() > PA2Util.MSS - PA2TCP.HEADER_LENGTH) {
+				return null;
+			}
+			sentSequence[neighborId]++;
+			return new PA2TCP(PA2Util.UPDATE_DELTA_TAG, myAddress, neighbor,
+					Arrays.copyOf(vectorBuffer.array(), vectorBuffer.position()));
+		}
+	}
+
+	/**
+	 * PA2TCP packet composer, asks a neighbor for its full vector.
+	 * 
+	 * @param neighbor
+	 * @return
+	 */
+	public PA2TCP composeResyncMsg(String neighbor) {
+		return new PA2TCP(PA2Util.RESYNC_TAG, myAddress, neighbor,
+				(String) null);
 	}
 
 	/**
@@ -418,136 +974,286 @@ public class BFKernel {
 	 * @param msg
 	 */
 	public void updateRouteFromMsg(PA2TCP msg) {
-		//payload: 192.168.0.8:1111=323;192.168.0.8:2323 223
+		synchronized (tableKey) {
+			int source = nodes.lookup(msg.getSourceAddress());
+			if (!isNeighbor(source)) {
+				return;
+			}
+			byte[] payload = msg.getPayload();
+			if (payload != null && payload.length > 0
+					&& payload[0] == VectorCodec.FRAGMENT) {
+				lastHeardTime[source] = new Date().getTime();
+				payload = reassembler.add(msg.getSourceAddress(), payload,
+						lastHeardTime[source]);
+				if (payload == null) {
+					// wait for the other fragments.
+					return;
+				}
+			}
+			Arrays.fill(spareRow, PA2Util.INFINTE_COST);
+			try {
+				VectorCodec.decode(payload, spareRowFiller);
+			} catch (IllegalArgumentException e) {
+				// the vector cannot be parsed, drop the packet.
+				return;
+			}
+			heardSequence[source] = VectorCodec.sequence(payload);
+			resyncRequested.clear(source);
+			applyVector(source);
+		}
+	}
 
-		String sourceAddress = msg.sourceAddress;
-		if (!neighbors.containsKey(sourceAddress)) {
-			return;
+	/**
+	 * apply the routes changed in a neighbor's vector and refresh the routing
+	 * table. If some earlier delta is missing, the neighbor is asked for its
+	 * full vector instead.
+	 * 
+	 * @param msg
+	 */
+	public void updateDeltaFromMsg(PA2TCP msg) {
+		synchronized (tableKey) {
+			int source = nodes.lookup(msg.getSourceAddress());
+			if (!isNeighbor(source)) {
+				return;
+			}
+			lastHeardTime[source] = new Date().getTime();
+			int sequence = VectorCodec.sequence(msg.getPayload());
+			if (sequence < 0) {
+				return;
+			}
+			int heard = heardSequence[source];
+			if (heard != NO_SEQUENCE && sequence <= heard) {
+				// a late or duplicated delta.
+				return;
+			}
+			if (heard == NO_SEQUENCE || sequence != heard + 1) {
+				if (!resyncRequested.get(source)) {
+					resyncRequested.set(source);
+					sendToHost(msg.getSourceAddress(),
+							composeResyncMsg(msg.getSourceAddress()));
+				}
+				return;
+			}
+			System.arraycopy(costMatrix[source], 0, spareRow, 0,
+					spareRow.length);
+			try {
+				VectorCodec.decode(msg.getPayload(), spareRowFiller);
+			} catch (IllegalArgumentException e) {
+				return;
+			}
+			heardSequence[source] = sequence;
+			applyVector(source);
+		}
+	}
+
+	/**
+	 * send the full vector to a neighbor who asked for it.
+	 * 
+	 * @param msg
+	 */
+	public void resyncFromMsg(PA2TCP msg) {
+		synchronized (tableKey) {
+			int source = nodes.lookup(msg.getSourceAddress());
+			if (isNeighbor(source)
+					&& linkCost[source] != PA2Util.INFINTE_COST) {
+				sendVectorToNeighbor(source);
+			}
 		}
-		lastHeardTimeTable.put(sourceAddress, new Date().getTime());
+	}
+
+	/**
+	 * replace the vector of a neighbor with the spare row, which holds the
+	 * new vector, and refresh the routing table. Must be called under
+	 * tableKey.
+	 * 
+	 * @param source
+	 *            id of the neighbor
+	 */
+	private void applyVector(int source) {
+		lastHeardTime[source] = new Date().getTime();
 
 		// if the source neighbor is set to close(INFINITE_COST), recover the link
-		if (neighbors.get(sourceAddress) == PA2Util.INFINTE_COST) {
-			neighbors.put(sourceAddress, neighborsBackup.get(sourceAddress));
+		boolean linkRecovered = false;
+		if (linkCost[source] == PA2Util.INFINTE_COST) {
+			linkCost[source] = linkCostBackup[source];
+			linkRecovered = true;
 		}
 
-		String[] tmp = new String(msg.payloadData).split(";");
-		ConcurrentHashMap<String, Double> neighborCostTable = new ConcurrentHashMap<String, Double>();
-		for (int i = 0; i < tmp.length; i++) {
-			String[] item = tmp[i].split("=");
-			if (item[1].startsWith(PA2Util.INFINITY_TAG)) {
-				neighborCostTable.put(item[0], PA2Util.INFINTE_COST);
-			} else {
-				neighborCostTable.put(item[0], Double.valueOf(item[1]));
+		// diff against the previous vector of the neighbor, then keep the
+		// old row as the spare one.
+		double[] newRow = spareRow;
+		double[] oldRow = costMatrix[source];
+		changedDsts.clear();
+		for (int dst = 0; dst < nodes.size(); dst++) {
+			if (oldRow[dst] != newRow[dst]) {
+				changedDsts.set(dst);
 			}
 		}
+		costMatrix[source] = newRow;
+		spareRow = oldRow;
 
-		bfCostTable.replace(sourceAddress, neighborCostTable);
-
-		if (refreshBFCostTable(sourceAddress)) {
-			sendVectorsToNeighbors();
+		boolean changed;
+		if (linkRecovered) {
+			// every route via the neighbor has a new first hop cost.
+			changed = refreshRoutes();
+		} else {
+			changed = refreshRoutes(source, changedDsts);
+		}
+		if (changed) {
+			sendDeltasToNeighbors();
+		}
+		if (fullPending.get(source)) {
+			sendVectorToNeighbor(source);
 		}
+	}
 
+	/**
+	 * set the cost of a direct link and refresh the routing table.
+	 * 
+	 * @param sourceAddress
+	 *            address of the neighbor.
+	 * @param newCost
+	 *            INFINTE_COST to shut down the link; a negative value to
+	 *            restore the initial cost.
+	 */
+	private void setLinkCost(String sourceAddress, double newCost) {
+		synchronized (tableKey) {
+			int source = nodes.lookup(sourceAddress);
+			if (!isNeighbor(source)) {
+				return;
+			}
+			linkCost[source] = newCost < 0 ? linkCostBackup[source] : newCost;
+			if (linkCost[source] == PA2Util.INFINTE_COST) {
+				fullPending.set(source);
+			}
+			if (refreshRoutes()) {
+				sendDeltasToNeighbors();
+			}
+			if (fullPending.get(source)
+					&& linkCost[source] != PA2Util.INFINTE_COST) {
+				sendVectorToNeighbor(source);
+			}
+		}
 	}
 
 	public void shutDownLink(String sourceAddress) {
-		if (!neighbors.containsKey(sourceAddress)) {
-			return;
-		}
-		neighbors.put(sourceAddress, PA2Util.INFINTE_COST);
-		if (refreshBFCostTable(myAddress)) {
-			sendVectorsToNeighbors();
-		}
+		setLinkCost(sourceAddress, PA2Util.INFINTE_COST);
 	}
 
 	public void shutDownLinkFromMsg(PA2TCP msg) {
-		shutDownLink(msg.sourceAddress);
+		shutDownLink(msg.getSourceAddress());
 
 	}
 
 	public void setUpLink(String sourceAddress) {
-		if (!neighbors.containsKey(sourceAddress)) {
-			return;
-		}
-		neighbors.put(sourceAddress, neighborsBackup.get(sourceAddress));
-		if (refreshBFCostTable(myAddress)) {
-			sendVectorsToNeighbors();
-		}
+		setLinkCost(sourceAddress, -1);
 	}
 
 	public void setUpLinkFromMsg(PA2TCP msg) {
-		setUpLink(msg.sourceAddress);
+		setUpLink(msg.getSourceAddress());
 	}
 
 	public void changeCost(String sourceAddress, double newCost) {
-		if (!neighbors.containsKey(sourceAddress)) {
-			return;
-		}
-		neighbors.put(sourceAddress, newCost);
-		// neighborsBackup.put(sourceAddress, newCost);
-		if (refreshBFCostTable(myAddress)) {
-			sendVectorsToNeighbors();
-		}
-
+		setLinkCost(sourceAddress, newCost);
 	}
 
 	public void changeCostFromMsg(PA2TCP msg) {
-		changeCost(msg.sourceAddress,
-				Double.valueOf(new String(msg.payloadData)));
+		changeCost(msg.getSourceAddress(),
+				Double.valueOf(new String(msg.getPayload())));
 	}
 
 	/**
-	 * recalculate the distance vector
-	 * @param sourceAddress
-	 * @return true if the distance vector is changed; false otherwise
+	 * recalculate the distance vector to all the destinations. Used when the
+	 * cost of a direct link changes, which changes every route via that
+	 * neighbor.
+	 * 
+	 * @return true if the cost or next hop of any destination is changed
 	 */
-	public boolean refreshBFCostTable(String sourceAddress) {
-		// to refresh the dst one by one
-		Set<String> candidates = bfCostTable.get(sourceAddress).keySet();
-		// ConcurrentHashMap<String, Double> neighborCostTable =
-		// bfCostTable.get(sourceAddress);
+	public boolean refreshRoutes() {
 		boolean changed = false;
-		for (String dst : candidates) {
-			if (dst.equals(myAddress)) {
-				continue;
+		for (int dst = 0; dst < nodes.size(); dst++) {
+			if (dst != myId && nextHop[dst] != UNKNOWN_ROUTE) {
+				changed |= reevaluateRoute(dst);
 			}
+		}
+		return changed;
+	}
 
-			// initialize
-			String bestRoute = neighbors.containsKey(dst) ? dst
-					: PA2Util.UNREACHABLE;
-			double lowestCost = neighbors.containsKey(dst) ? neighbors.get(dst)
-					: PA2Util.INFINTE_COST;
-
-			for (String neighbor : bfCostTable.keySet()) {
-				if (neighbor.equals(myAddress)) {
-					continue;
-				}
-				double firstHopCost = neighbors.get(neighbor);
-
-				double cost1 = bfCostTable.get(neighbor).containsKey(dst) ? bfCostTable
-						.get(neighbor).get(dst) + firstHopCost
-						: PA2Util.INFINTE_COST;
-				cost1 = Math.min(cost1, PA2Util.INFINTE_COST);
-				if (cost1 < lowestCost) {
-					bestRoute = neighbor;
-					lowestCost = cost1;
-				}
-			}
-			if (!bfCostTable.get(myAddress).containsKey(dst)
-					|| lowestCost != bfCostTable.get(myAddress).get(dst)) {
-				changed = true;
+	/**
+	 * recalculate the distance vector after the vector of a neighbor is
+	 * replaced. Only the destinations whose cost via the neighbor has changed
+	 * are looked at. A lower cost via the neighbor is taken at once; a higher
+	 * cost only matters if the neighbor is the current next hop, and then the
+	 * route to that destination is recalculated over all the neighbors.
+	 * 
+	 * @param source
+	 *            id of the neighbor whose vector is replaced.
+	 * @param dsts
+	 *            the destinations whose cost in the vector has changed.
+	 * @return true if the cost or next hop of any destination is changed
+	 */
+	public boolean refreshRoutes(int source, BitSet dsts) {
+		boolean changed = false;
+		double[] myCosts = costMatrix[myId];
+		for (int dst = dsts.nextSetBit(0); dst >= 0; dst = dsts
+				.nextSetBit(dst + 1)) {
+			if (dst == myId) {
+				continue;
 			}
-			bfCostTable.get(myAddress).put(dst, lowestCost);
-
-			if (lowestCost == PA2Util.INFINTE_COST) {
-				routingTable.put(dst, PA2Util.UNREACHABLE);
+			if (nextHop[dst] == UNKNOWN_ROUTE || nextHop[dst] == source) {
+				changed |= reevaluateRoute(dst);
 			} else {
-				routingTable.put(dst, bestRoute);
+				double cost = costVia(source, dst);
+				if (cost < myCosts[dst]) {
+					myCosts[dst] = cost;
+					nextHop[dst] = source;
+					changedRoutes.set(dst);
+					changed = true;
+				}
 			}
 		}
 		return changed;
 	}
 
+	/**
+	 * cost to a destination via a neighbor, bounded by INFINTE_COST.
+	 */
+	private double costVia(int neighbor, int dst) {
+		return Math.min(costMatrix[neighbor][dst] + linkCost[neighbor],
+				PA2Util.INFINTE_COST);
+	}
+
+	/**
+	 * recalculate the route to one destination over all the neighbors.
+	 * 
+	 * @param dst
+	 * @return true if the cost or the next hop is changed
+	 */
+	private boolean reevaluateRoute(int dst) {
+		// initialize
+		int bestRoute = isNeighbor(dst) ? dst : NO_ROUTE;
+		double lowestCost = isNeighbor(dst) ? linkCost[dst]
+				: PA2Util.INFINTE_COST;
+
+		for (int neighbor : neighborIds) {
+			double cost1 = costVia(neighbor, dst);
+			if (cost1 < lowestCost) {
+				bestRoute = neighbor;
+				lowestCost = cost1;
+			}
+		}
+		if (lowestCost == PA2Util.INFINTE_COST) {
+			bestRoute = NO_ROUTE;
+		}
+		if (costMatrix[myId][dst] == lowestCost && nextHop[dst] == bestRoute) {
+			return false;
+		}
+		costMatrix[myId][dst] = lowestCost;
+		nextHop[dst] = bestRoute;
+		changedRoutes.set(dst);
+		return true;
+	}
+
 	/**
 	 * check the lastHeardTime of each neighbor
 	 * 
@@ -556,71 +1262,105 @@ public class BFKernel {
 	 */
 	public void checkDeadNode() {
 		long currentTime = new Date().getTime();
-		for (String neighbor : neighbors.keySet()) {
-			if (neighbors.get(neighbor) == PA2Util.INFINTE_COST) {
-				continue;
-			}
-			if (currentTime - lastHeardTimeTable.get(neighbor) > 3 * timeout * 1000) {
-				shutDownLink(neighbor);
+		synchronized (tableKey) {
+			for (int neighbor : neighborIds) {
+				if (linkCost[neighbor] == PA2Util.INFINTE_COST) {
+					continue;
+				}
+				if (currentTime - lastHeardTime[neighbor] > 3 * timeout * 1000) {
+					shutDownLink(nodes.address(neighbor));
+				}
 			}
 		}
+	}
 
+	/**
+	 * the time when the next neighbor will be regarded as dead if it is not
+	 * heard from.
+	 * 
+	 * @return time in millisecond; Long.MAX_VALUE if there is no active
+	 *         neighbor
+	 */
+	public long getNextDeadNodeCheckTime() {
+		long nextCheckTimestamp = Long.MAX_VALUE;
+		synchronized (tableKey) {
+			for (int neighbor : neighborIds) {
+				if (linkCost[neighbor] != PA2Util.INFINTE_COST) {
+					// ignore already-dead node
+					nextCheckTimestamp = Math.min(nextCheckTimestamp,
+							lastHeardTime[neighbor] + 3 * timeout * 1000);
+				}
+			}
+		}
+		return nextCheckTimestamp;
 	}
 
 	/**
-	 * A method to send the file to the destination
+	 * A method to send the file to the destination. The transfer is run by
+	 * the transfer executor, this method returns once it is started.
 	 * 
 	 * @param dst
 	 * @param filePath
+	 * @return id of the transfer
 	 * @throws Exception
 	 */
-	public void transferFile(String dst, String filePath) throws Exception {
-		String[] tmp = filePath.split("/");
-		String fileName = tmp[tmp.length - 1];//retrieve the filename
-
+	public int transferFile(String dst, String filePath) throws Exception {
 		File file = new File(filePath);
 		if (!file.exists()) {
-			return;
+			return -1;
 		}
-		InputStream is = new FileInputStream(file);
-
-		long fileSize = file.length();
-		long offSet = 0;
-		// PA2PACKET header+checksum = 26
-		// PAFTP header = 66
-		byte[] data = new byte[PA2Util.MSS - 92];
-		int size;
-		int countRetransmit;
-		while ((size = is.read(data)) != -1) {
-			countRetransmit = 0;
-			offSet += size;
-			byte[] toSend = new byte[size];
-			for (int i = 0; i < size; i++) {
-				toSend[i] = data[i];
-			}
-			PA2FTP pf = new PA2FTP(fileName, fileSize, offSet, toSend);
-			while (true) {
-				sendFileDataToHost(dst, pf);
-				//wait for messageReceiveThread the receive the ACK and interrupt the loop of sleep.
+		final int transferId = nextTransferId.getAndIncrement();
+		final FileSender sender = new FileSender(this, transferId, dst, file);
+		fileSenders.put(transferId, sender);
+		transferExecutor.execute(new Runnable() {
+			public void run() {
+				boolean done = false;
 				try {
-					Thread.sleep(PA2Util.ACK_TIMEOUT);
-				} catch (InterruptedException ie) {
-					break;
+					done = sender.run();
+				} catch (Exception e) {
+				} finally {
+					fileSenders.remove(transferId);
 				}
-				countRetransmit++;
-				if (countRetransmit >= PA2Util.MAX_RETRANSMISSION) {
+				if (done && sender.getResumedOffset() >= sender.fileSize
+						&& sender.fileSize > 0) {
+					System.out.println("File Already Exists at the destination."
+							+ " Transfer = " + transferId);
+				} else if (done) {
+					System.out.println("File sent successfully. Transfer = "
+							+ transferId);
+					if (sender.getResumedOffset() > 0) {
+						System.out.println("Resumed at offset "
+								+ sender.getResumedOffset() + ".");
+					}
+				} else if (sender.isCorrupted()) {
+					System.out.println("File received corrupted. Transfer "
+							+ transferId + " cancelled.");
+				} else {
 					//Give up the process if retransmit a packet for too many time
-					System.out
-							.println("Retransmit too many times. Transfer cancelled.");
-					System.out.print(">");
-					is.close();
-					return;
+					System.out.println("Retransmit too many times. Transfer "
+							+ transferId + " cancelled.");
+					System.out.println("TRANSFER the file again to resume.");
 				}
+				System.out.print(">");
+			}
+		});
+		return transferId;
+	}
+
+	/**
+	 * Stop receiving a file by the earlier transfers, so that a new transfer
+	 * of the file can resume from where they are.
+	 * 
+	 * @param fileName
+	 */
+	public void closeReceivers(String fileName) {
+		for (String key : fileReceivers.keySet()) {
+			FileReceiver receiver = fileReceivers.get(key);
+			if (receiver != null && receiver.fileName.equals(fileName)) {
+				fileReceivers.remove(key);
+				receiver.close();
 			}
 		}
-		is.close();
-		System.out.println("File sent successfully.");
-		System.out.print(">");
 	}
 
 }
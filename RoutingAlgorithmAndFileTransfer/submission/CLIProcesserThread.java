@@ -33,6 +33,9 @@ public class CLIProcesserThread extends Thread {
 			if (command.startsWith(PA2Util.SHOWRT_COMMAND)) {
 				System.out.println(kernel.getDVTable());
 				System.out.print(">");
+			} else if (command.startsWith(PA2Util.STATS_COMMAND)) {
+				System.out.println(kernel.getRttStats());
+				System.out.print(">");
 			} else if (command.startsWith(PA2Util.LINK_DOWN_COMMAND)) {
 				processLinkDownCommand(command);
 			} else if (command.startsWith(PA2Util.LINK_UP_COMMAND)) {
@@ -69,13 +72,13 @@ public class CLIProcesserThread extends Thread {
 		}
 		String dst = tmp[1] + ":" + tmp[2];
 		
-		if (!kernel.neighbors.containsKey(dst)) {
+		if (!kernel.isNeighbor(dst)) {
 			// the link is not its neighbor
 			System.out.println("No such link.");
 			System.out.print(">");
 			return;
 		}
-		if (kernel.neighbors.get(dst) == PA2Util.INFINTE_COST) {
+		if (kernel.getLinkCost(dst) == PA2Util.INFINTE_COST) {
 			System.out.println("Link is already down.");
 			System.out.print(">");
 			return;
@@ -96,13 +99,13 @@ public class CLIProcesserThread extends Thread {
 			return;
 		}
 		String dst = tmp[1] + ":" + tmp[2];
-		if (!kernel.neighbors.containsKey(dst)) {
+		if (!kernel.isNeighbor(dst)) {
 			//the link is not its neighbor
 			System.out.println("No such link.");
 			System.out.print(">");
 			return;
 		}
-		if (kernel.neighbors.get(dst) != PA2Util.INFINTE_COST) {
+		if (kernel.getLinkCost(dst) != PA2Util.INFINTE_COST) {
 			System.out.println("Link is already up.");
 			System.out.print(">");
 			return;
@@ -133,13 +136,13 @@ public class CLIProcesserThread extends Thread {
 			System.out.print(">");
 			return;
 		}
-		if (!kernel.neighbors.containsKey(dst)) {
+		if (!kernel.isNeighbor(dst)) {
 			// the link is not its neighbor.
 			System.out.println("No such link.");
 			System.out.print(">");
 			return;
 		}
-		if (kernel.neighbors.get(dst) == PA2Util.INFINTE_COST) {
+		if (kernel.getLinkCost(dst) == PA2Util.INFINTE_COST) {
 			System.out.println("Link is already down. Set up first.");
 			System.out.print(">");
 			return;
@@ -162,7 +165,8 @@ public class CLIProcesserThread extends Thread {
 		}
 		String filePath = tmp[1];
 		String dst = tmp[2] + ":" + tmp[3];
-		if (!kernel.routingTable.containsKey(dst)||kernel.routingTable.get(dst).equals(PA2Util.UNREACHABLE)) {
+		String route = kernel.getRoute(dst);
+		if (route.equals(PA2Util.UNREACHABLE)) {
 			// no route to the destination
 			System.out.println("Destination Address Unreachable.");
 			System.out.print(">");
@@ -174,12 +178,15 @@ public class CLIProcesserThread extends Thread {
 			System.out.print(">");
 			return;
 		}
-		System.out.println("Next hop = " + kernel.routingTable.get(dst));
+		System.out.println("Next hop = " + route);
 
 		try {
-			kernel.transferFile(dst, filePath);
+			int transferId = kernel.transferFile(dst, filePath);
+			System.out.println("Transfer = " + transferId + " started.");
 		} catch (Exception e) {
+			System.out.println("Failed to open the file.");
 		}
+		System.out.print(">");
 	}
 
 	public void processAddProxyCommand(String command) {
@@ -193,7 +200,7 @@ public class CLIProcesserThread extends Thread {
 		}
 		String neighbor = tmp[3] + ":" + tmp[4];
 		String proxy = tmp[1] + ":" + tmp[2];
-		if (!kernel.neighbors.containsKey(neighbor)) {
+		if (!kernel.isNeighbor(neighbor)) {
 			System.out.println("Neighbor not found.");
 			System.out.print(">");
 			return;
@@ -1,7 +1,9 @@
 import java.util.Date;
 
 /**
- * The thread to periodically send UPDATE_ROUTE message to neighbors.
+ * The thread to periodically send UPDATE_ROUTE message to neighbors. The
+ * periodic message carries the full distance vector; the routes changed in
+ * between are sent as UPDATE_DELTA by the kernel as soon as they change.
  * 
  * @author Chao Chen
  * @version 1.0
@@ -24,9 +26,9 @@ public class DefaultUpdateSenderThread extends Thread {
 				bfInfo.sendVectorsToNeighbors();
 				sleepTime = bfInfo.timeout * 1000;
 			} else {
-				//during the last sleep period, BellmanFord distance vector changing
-				//has triggered an unregular UPDATE_ROUTE, then the next time to
-				//send UPDATE_ROUTE should be recalculated.
+				//the full vectors have been sent during the last sleep period,
+				//i.e. at start up, then the next time to send UPDATE_ROUTE
+				//should be recalculated.
 				sleepTime = bfInfo.timeout * 1000 - currentTime
 						+ bfInfo.lastUpdateSendTime;
 			}
@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The deflate(zlib) codec of the file data, with an Adler-32 of each chunk.
+ *
+ * A Deflater and an Inflater are kept by every thread and reset for every
+ * chunk, so that the native memory of zlib is not allocated per segment.
+ *
+ * @author Chao Chen
+ * @version 1.0
+ */
+public class DeflateCodec extends PayloadCodec {
+	public static final byte ID = 1;
+
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(PA2Util.COMPRESSION_LEVEL);
+		}
+	};
+
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	@Override
+	public byte id() {
+		return ID;
+	}
+
+	@Override
+	public String name() {
+		return "deflate";
+	}
+
+	@Override
+	public int encode(ByteBuffer src, byte[] dst) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(src.duplicate());
+		deflater.finish();
+		int length = 0;
+		while (!deflater.finished() && length < dst.length) {
+			length += deflater.deflate(dst, length, dst.length - length);
+		}
+		return deflater.finished() ? length : -1;
+	}
+
+	@Override
+	public int decode(ByteBuffer src, byte[] dst) throws IOException {
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(src.duplicate());
+		int length = 0;
+		try {
+			while (!inflater.finished() && length < dst.length) {
+				int n = inflater.inflate(dst, length, dst.length - length);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Truncated chunk.");
+				}
+				length += n;
+			}
+		} catch (DataFormatException de) {
+			throw new IOException(de);
+		}
+		if (!inflater.finished()) {
+			throw new IOException("Chunk longer than " + dst.length + ".");
+		}
+		return length;
+	}
+}
@@ -0,0 +1,400 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The receiver of one file transfer, kept by the BFKernel under the source
+ * address and the transfer id.
+ *
+ * The data is written into a temporary file, fileName + PART_SUFFIX, kept
+ * open for the whole transfer. Every segment is written at its offset as soon
+ * as it arrives, in order or not, so nothing is kept in memory but the
+ * ranges received. When the whole file is received, it is flushed to the
+ * disk and renamed to fileName, so that a file of that name is always
+ * complete.
+ * 
+ * The file is checked against the SHA-256 digest from the open request. The
+ * digest is updated as the data before which all of it is written grows, from
+ * the segment that fills the gap and from the file for the segments written
+ * after it. A file not matching the digest is deleted instead of renamed.
+ * 
+ * Every CHECKPOINT_INTERVAL bytes, the data is flushed to the disk and the
+ * offset before which all of it is written is saved with the file size and
+ * digest in a checkpoint file, fileName + CHECKPOINT_SUFFIX. A receiver of
+ * the same file, made by a later transfer or after a restart, goes on from
+ * the checkpoint, and replies the open request of the sender with it so that
+ * the sender resumes there.
+ * 
+ * With the codec accepted in the open request, a segment may carry a chunk
+ * of the file compressed on its own, which is decompressed into a buffer of
+ * MAX_CHUNK bytes before it is written.
+ *
+ * Not thread safe. Used by the message receiver only.
+ *
+ * @author Chao Chen
+ * @version 1.0
+ */
+public class FileReceiver {
+	/**
+	 * suffix of the file under receiving.
+	 */
+	public static final String PART_SUFFIX = ".part";
+
+	/**
+	 * suffix of the checkpoint of the file under receiving.
+	 */
+	public static final String CHECKPOINT_SUFFIX = ".ckpt";
+
+	int transferId;
+	String fileName;
+	long fileSize;
+
+	private File partFile;
+	private File checkpointFile;
+	private long checkpointOffset = 0; // the offset saved in the checkpoint.
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private long receivedOffset = 0; // all the bytes before it are written.
+
+	/**
+	 * digest from the sender, and the digest of the data before
+	 * receivedOffset.
+	 */
+	private byte[] expectedDigest;
+	private MessageDigest sha;
+	private boolean corrupted = false;
+
+	/**
+	 * buffer to read back the data written, to update the digest.
+	 */
+	private ByteBuffer readBuffer;
+
+	/**
+	 * codec accepted for the transfer, null if none; and the buffer to
+	 * decompress the segments into.
+	 */
+	private PayloadCodec codec;
+	private byte[] decodeBuffer;
+
+	/**
+	 * <start offset, end offset> of the ranges written, merged when they
+	 * touch.
+	 */
+	private TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+
+	/**
+	 * Constructor. Open the temporary file, from the checkpoint if there is
+	 * one of this file, or create it.
+	 *
+	 * @param transferId
+	 * @param fileName
+	 * @param fileSize
+	 * @param digest
+	 *            SHA-256 digest of the file
+	 * @param codec
+	 *            codec accepted for the data, null if it is not compressed
+	 * @throws IOException
+	 */
+	public FileReceiver(int transferId, String fileName, long fileSize,
+			byte[] digest, PayloadCodec codec) throws IOException {
+		this.transferId = transferId;
+		this.fileName = fileName;
+		this.fileSize = fileSize;
+		this.expectedDigest = digest;
+		this.codec = codec;
+		try {
+			this.sha = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ne) {
+			throw new IOException(ne);
+		}
+		this.partFile = new File(fileName + PART_SUFFIX);
+		this.checkpointFile = new File(fileName + CHECKPOINT_SUFFIX);
+		this.raf = new RandomAccessFile(partFile, "rw");
+		this.channel = raf.getChannel();
+		long offset = readCheckpoint();
+		if (offset > 0 && raf.length() >= offset) {
+			// the digest is not saved in the middle, but made again from
+			// the data of the checkpoint.
+			digestWritten(0, offset);
+			checkpointOffset = offset;
+			receivedOffset = offset;
+			ranges.put(0L, offset);
+		} else {
+			raf.setLength(0);
+		}
+		if (receivedOffset >= fileSize) {
+			complete();
+		}
+	}
+
+	/**
+	 * @return offset in the checkpoint of this file; 0 if there is no
+	 *         checkpoint, or it is of another file.
+	 */
+	private long readCheckpoint() {
+		if (!checkpointFile.exists()) {
+			return 0;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(checkpointFile));
+			long size = in.readLong();
+			long offset = in.readLong();
+			byte[] digest = new byte[expectedDigest.length];
+			in.readFully(digest);
+			if (size != fileSize || !Arrays.equals(digest, expectedDigest)
+					|| offset < 0 || offset > fileSize) {
+				return 0;
+			}
+			return offset;
+		} catch (IOException ie) {
+			return 0;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ie) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Flush the data to the disk and save the offset before which all of it
+	 * is written. The checkpoint is written to a temporary file and renamed,
+	 * so that it is never seen half written.
+	 *
+	 * @throws IOException
+	 */
+	private void writeCheckpoint() throws IOException {
+		if (receivedOffset == checkpointOffset) {
+			return;
+		}
+		channel.force(false);
+		File tmp = new File(checkpointFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(fos);
+		try {
+			out.writeLong(fileSize);
+			out.writeLong(receivedOffset);
+			out.write(expectedDigest);
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(checkpointFile)) {
+			checkpointFile.delete();
+			if (!tmp.renameTo(checkpointFile)) {
+				throw new IOException("Cannot write " + checkpointFile);
+			}
+		}
+		checkpointOffset = receivedOffset;
+	}
+
+	/**
+	 * Take a segment of the file.
+	 *
+	 * @param pf
+	 *            the segment, whose fileData may be a view of the receive
+	 *            buffer
+	 * @return true if the whole file has been written, or found corrupted.
+	 * @throws IOException
+	 */
+	public boolean receive(PA2FTP pf) throws IOException {
+		if (pf.offSet == 0) {
+			// the open request.
+			return receivedOffset >= fileSize;
+		}
+		ByteBuffer chunk = decode(pf);
+		long end = pf.offSet;
+		long start = chunk == null || !chunk.hasRemaining() ? -1 : end
+				- chunk.remaining();
+		if (start < 0 || end > fileSize || isReceived(start, end)) {
+			// a duplicated segment, or one not decoded.
+			return receivedOffset >= fileSize;
+		}
+
+		ByteBuffer data = chunk.duplicate();
+		long position = start;
+		while (data.hasRemaining()) {
+			position += channel.write(data, position);
+		}
+		addRange(start, end);
+		long newOffset = ranges.firstKey() == 0 ? ranges.firstEntry()
+				.getValue() : 0;
+		if (newOffset > receivedOffset) {
+			// the segment fills the gap: digest it from the packet, and the
+			// segments written after it from the file.
+			ByteBuffer filled = chunk.duplicate();
+			filled.position(filled.position() + (int) (receivedOffset - start));
+			sha.update(filled);
+			digestWritten(end, newOffset);
+			receivedOffset = newOffset;
+		}
+
+		if (receivedOffset >= fileSize) {
+			complete();
+			return true;
+		}
+		if (receivedOffset - checkpointOffset >= PA2Util.CHECKPOINT_INTERVAL) {
+			writeCheckpoint();
+		}
+		return false;
+	}
+
+	/**
+	 * @param pf
+	 * @return the chunk of the file carried by a segment, decompressed if it
+	 *         is compressed; null if it is compressed by another codec than
+	 *         the one accepted, or cannot be decompressed.
+	 */
+	private ByteBuffer decode(PA2FTP pf) {
+		if (pf.codec == PayloadCodec.NONE) {
+			return pf.fileData;
+		}
+		if (codec == null || pf.codec != codec.id()) {
+			return null;
+		}
+		if (decodeBuffer == null) {
+			decodeBuffer = new byte[PA2Util.MAX_CHUNK];
+		}
+		try {
+			return ByteBuffer.wrap(decodeBuffer, 0, codec.decode(pf.fileData,
+					decodeBuffer));
+		} catch (IOException ie) {
+			return null;
+		}
+	}
+
+	/**
+	 * Flush the file to the disk and give it its name.
+	 *
+	 * @throws IOException
+	 */
+	private void complete() throws IOException {
+		if (!Arrays.equals(sha.digest(), expectedDigest)) {
+			corrupted = true;
+			raf.close();
+			partFile.delete();
+			checkpointFile.delete();
+			return;
+		}
+		channel.force(true);
+		raf.close();
+		File file = new File(fileName);
+		if (!partFile.renameTo(file)) {
+			throw new IOException("Cannot rename " + partFile + " to "
+					+ file);
+		}
+		checkpointFile.delete();
+	}
+
+	/**
+	 * Update the digest with data written to the file.
+	 * 
+	 * @param from
+	 * @param to
+	 * @throws IOException
+	 */
+	private void digestWritten(long from, long to) throws IOException {
+		if (readBuffer == null) {
+			readBuffer = ByteBuffer.allocate(64 * 1024);
+		}
+		while (from < to) {
+			readBuffer.clear();
+			readBuffer.limit((int) Math.min(readBuffer.capacity(), to - from));
+			int n = channel.read(readBuffer, from);
+			if (n < 0) {
+				throw new IOException("Unexpected end of " + partFile);
+			}
+			readBuffer.flip();
+			sha.update(readBuffer);
+			from += n;
+		}
+	}
+
+	/**
+	 * @return true if the whole file is received and does not match the
+	 *         digest. It is deleted.
+	 */
+	public boolean isCorrupted() {
+		return corrupted;
+	}
+
+	/**
+	 * @return offset before which all the data is written
+	 */
+	public long getReceivedOffset() {
+		return receivedOffset;
+	}
+
+	/**
+	 * Save the checkpoint and close the file of a transfer given up, so that
+	 * a later transfer can resume from it.
+	 */
+	public void close() {
+		try {
+			writeCheckpoint();
+		} catch (IOException ie) {
+		}
+		try {
+			raf.close();
+		} catch (IOException ie) {
+		}
+	}
+
+	private boolean isReceived(long start, long end) {
+		Map.Entry<Long, Long> e = ranges.floorEntry(start);
+		return e != null && e.getValue() >= end;
+	}
+
+	private void addRange(long start, long end) {
+		Map.Entry<Long, Long> e = ranges.floorEntry(start);
+		if (e != null && e.getValue() >= start) {
+			start = e.getKey();
+			end = Math.max(end, e.getValue());
+		}
+		while ((e = ranges.ceilingEntry(start)) != null && e.getKey() <= end) {
+			ranges.remove(e.getKey());
+			end = Math.max(end, e.getValue());
+		}
+		ranges.put(start, end);
+	}
+
+	/**
+	 * @return the ACK of all the data received so far.
+	 */
+	public PA2ACK composeAck() {
+		ArrayList<long[]> blocks = new ArrayList<long[]>();
+		for (Map.Entry<Long, Long> e : ranges.tailMap(receivedOffset, false)
+				.entrySet()) {
+			if (blocks.size() == PA2Util.MAX_SACK_BLOCKS) {
+				break;
+			}
+			blocks.add(new long[] { e.getKey(), e.getValue() });
+		}
+		long[] starts = new long[blocks.size()];
+		long[] ends = new long[blocks.size()];
+		for (int i = 0; i < starts.length; i++) {
+			starts[i] = blocks.get(i)[0];
+			ends[i] = blocks.get(i)[1];
+		}
+		PA2ACK ack = new PA2ACK(transferId, fileName, corrupted ? -1
+				: receivedOffset, starts, ends);
+		ack.codec = codec == null ? PayloadCodec.NONE : codec.id();
+		return ack;
+	}
+}
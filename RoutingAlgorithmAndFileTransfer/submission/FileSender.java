@@ -0,0 +1,655 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * The sender of one file transfer, with a sliding window.
+ * 
+ * Up to WINDOW_SIZE segments are sent without waiting for their ACKs. A
+ * segment is sent again if it is not acknowledged within the RTO given by
+ * the RttEstimator of the destination, or at once when three ACKs in a row
+ * report data received after it but not itself(fast retransmit). The
+ * transfer is cancelled when a segment has been sent MAX_RETRANSMISSION
+ * times.
+ * 
+ * Before any data, the sender sends an open request until the receiver
+ * replies. The request carries the SHA-256 digest of the whole file, which
+ * the receiver checks the file against. The offset acknowledged by the reply
+ * is where the receiver has the file up to from an earlier transfer of the
+ * same file, and the data is sent from there on(resume).
+ * 
+ * The segments in the network are further limited by a congestion window,
+ * so that transfers through the same relay nodes share them instead of
+ * overloading them. As in TCP Reno, the window starts at INITIAL_WINDOW and
+ * grows by one segment for every segment acknowledged(slow start) until
+ * ssthresh, then by one segment a round trip(congestion avoidance). A fast
+ * retransmit halves it, and a timeout sets it back to one segment.
+ * 
+ * The file is mapped into memory a region at a time, and the data of a
+ * segment is a slice of the region. It is copied only once, into the packet
+ * when the segment is sent, and is not kept in memory for retransmission.
+ * 
+ * If COMPRESSION is on and a sample of the file compresses, the open request
+ * proposes a PayloadCodec, and the segments are compressed once the receiver
+ * accepts it. A segment then carries a chunk of the file compressed on its
+ * own into at most SEGMENT_SIZE bytes, the chunk size following the ratio of
+ * the last chunk; a chunk that does not compress is sent as it is. Only the
+ * compressed data is kept in memory for retransmission.
+ * 
+ * run() is called by a thread of the transfer executor, onAck() by the
+ * message receiver; both hold the lock of this instance. run() reads the
+ * file for the digest and the compression sample before it takes the lock,
+ * and leaves it to make every new segment, so that ACKs and STATS are not
+ * held up by the reading and the compressing. The lock is taken again to
+ * publish the segment.
+ * 
+ * @author Chao Chen
+ * @version 1.0
+ */
+public class FileSender {
+	/**
+	 * bytes of file data in a segment, so that the packet fits in MSS.
+	 */
+	public static final int SEGMENT_SIZE = PA2Util.MSS - PA2TCP.HEADER_LENGTH
+			- PA2FTP.HEADER_LENGTH;
+
+	/**
+	 * bytes of the file mapped at a time. A segment ends at the end of its
+	 * region at the latest.
+	 */
+	private static final long REGION_SIZE = (long) SEGMENT_SIZE * 65536;
+
+	/**
+	 * suffixes of the files taken as compressed already.
+	 */
+	private static final String[] COMPRESSED_SUFFIXES = { ".gz", ".tgz",
+			".zip", ".bz2", ".xz", ".7z", ".zst", ".jar", ".jpg", ".jpeg",
+			".png", ".gif", ".mp3", ".mp4", ".avi", ".mkv" };
+
+	/**
+	 * chunks sampled from the file, and the most compressed size of them in
+	 * their size to compress the file.
+	 */
+	private static final int SAMPLES = 3;
+	private static final double MAX_SAMPLE_RATIO = 0.9;
+
+	/**
+	 * A segment sent and not yet cumulatively acknowledged.
+	 */
+	private static class Segment {
+		long start;
+		long end;
+		PA2FTP pf;
+		long sentTime;
+		int transmissions = 0;
+		boolean selectivelyAcked = false;
+		boolean lost = false; // to be sent again.
+	}
+
+	BFKernel kernel;
+	int transferId;
+	String dst;
+	String fileName;
+	long fileSize;
+	RttEstimator rtt;
+
+	private FileChannel channel;
+	private MappedByteBuffer[] regions;
+	private ArrayDeque<Segment> inFlight = new ArrayDeque<Segment>();
+	private long nextOffset = 0; // the first byte not sent yet.
+	private long ackedOffset = 0; // all the bytes before it are acknowledged.
+	private int duplicateAcks = 0;
+
+	/**
+	 * the open request is replied, and the offset the transfer is resumed
+	 * at.
+	 */
+	private boolean opened = false;
+	private long resumedOffset = 0;
+	private long openSentTime;
+	private int openTransmissions = 0;
+
+	/**
+	 * the receiver found the file received not matching the digest.
+	 */
+	private boolean corrupted = false;
+
+	/**
+	 * congestion window and slow start threshold, in segments.
+	 */
+	private double cwnd = PA2Util.INITIAL_WINDOW;
+	private double ssthresh = PA2Util.WINDOW_SIZE;
+
+	/**
+	 * in fast recovery until the data sent before the fast retransmit is
+	 * acknowledged.
+	 */
+	private boolean inRecovery = false;
+	private long recoveryOffset = 0;
+
+	/**
+	 * the codec proposed, then accepted by the receiver; null if the data is
+	 * not compressed.
+	 */
+	private PayloadCodec codec;
+	private int chunkSize = 4 * SEGMENT_SIZE; // bytes of the file to compress.
+	private byte[] encodeBuffer = new byte[SEGMENT_SIZE];
+	private long rawBytes = 0; // bytes of the file in the segments made.
+	private long encodedBytes = 0; // bytes of data in the segments made.
+
+	/**
+	 * Constructor
+	 * 
+	 * @param kernel
+	 * @param transferId
+	 * @param dst
+	 *            destination ip:port
+	 * @param file
+	 * @throws IOException
+	 */
+	public FileSender(BFKernel kernel, int transferId, String dst, File file)
+			throws IOException {
+		this.kernel = kernel;
+		this.transferId = transferId;
+		this.dst = dst;
+		this.fileName = file.getName();
+		this.fileSize = file.length();
+		this.rtt = kernel.getRttEstimator(dst);
+		this.channel = new FileInputStream(file).getChannel();
+		this.regions = new MappedByteBuffer[(int) ((fileSize + REGION_SIZE - 1)
+				/ REGION_SIZE)];
+	}
+
+	/**
+	 * Send the file and wait until all of it is acknowledged.
+	 * 
+	 * @return true if the whole file is acknowledged; false if the transfer is
+	 *         cancelled after too many retransmissions, or the file received
+	 *         is corrupted.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public boolean run() throws IOException, InterruptedException {
+		byte[] digest;
+		PayloadCodec proposed;
+		try {
+			// the receiver checks its checkpoint against the digest before it
+			// replies the open request, so it is made before the request.
+			digest = digest();
+			proposed = chooseCodec();
+		} catch (IOException ie) {
+			channel.close();
+			throw ie;
+		}
+		return transfer(digest, proposed);
+	}
+
+	/**
+	 * Open the transfer and send the file.
+	 * 
+	 * @param digest
+	 *            SHA-256 digest of the file
+	 * @param proposed
+	 *            codec to propose, null if the file is not to be compressed
+	 * @return see run()
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private boolean transfer(byte[] digest, PayloadCodec proposed)
+			throws IOException, InterruptedException {
+		try {
+			synchronized (this) {
+				codec = proposed;
+				if (!open(digest)) {
+					return false;
+				}
+			}
+			Segment next = null; // made out of the lock, not published yet.
+			while (true) {
+				long offset;
+				synchronized (this) {
+					if (next != null) {
+						publish(next);
+						next = null;
+					}
+					if (ackedOffset >= fileSize) {
+						return true;
+					}
+					if (corrupted) {
+						return false;
+					}
+					long now = new Date().getTime();
+					long rto = rtt.rto();
+					for (Segment s : inFlight) {
+						if (!s.selectivelyAcked && !s.lost
+								&& now - s.sentTime >= rto) {
+							if (s.transmissions >= PA2Util.MAX_RETRANSMISSION) {
+								return false;
+							}
+							onTimeout();
+							break;
+						}
+					}
+					if (!fillWindow()) {
+						rto = rtt.rto();
+						long nextTimeout = now + rto;
+						for (Segment s : inFlight) {
+							if (!s.selectivelyAcked && !s.lost) {
+								nextTimeout = Math.min(nextTimeout, s.sentTime
+										+ rto);
+							}
+						}
+						wait(Math.max(1, nextTimeout - now));
+						continue;
+					}
+					// claim the segment at nextOffset. Only this thread
+					// moves nextOffset and the mapped regions.
+					releaseRegions();
+					offset = nextOffset;
+				}
+				// compressing takes a while, so the ACKs and STATS are not
+				// held up by it.
+				next = nextSegment(offset);
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * @return SHA-256 digest of the file, read a region at a time from the
+	 *         mapping.
+	 * @throws IOException
+	 */
+	private byte[] digest() throws IOException {
+		MessageDigest sha;
+		try {
+			sha = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ne) {
+			throw new IOException(ne);
+		}
+		for (long position = 0; position < fileSize; position += REGION_SIZE) {
+			sha.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+					Math.min(REGION_SIZE, fileSize - position)));
+		}
+		return sha.digest();
+	}
+
+	/**
+	 * Sample chunks at the start, the middle and the end of the file, and
+	 * take the codec if they compress. Files named as compressed ones and
+	 * files of less than two segments are not compressed.
+	 * 
+	 * @return the codec to propose; null if the file is not to be compressed.
+	 * @throws IOException
+	 */
+	private PayloadCodec chooseCodec() throws IOException {
+		PayloadCodec deflate = PayloadCodec.forId(DeflateCodec.ID);
+		if (!PA2Util.COMPRESSION || deflate == null
+				|| fileSize < 2 * SEGMENT_SIZE) {
+			return null;
+		}
+		String name = fileName.toLowerCase();
+		for (String suffix : COMPRESSED_SUFFIXES) {
+			if (name.endsWith(suffix)) {
+				return null;
+			}
+		}
+		byte[] output = new byte[PA2Util.MAX_CHUNK];
+		long raw = 0;
+		long encoded = 0;
+		for (int i = 0; i < SAMPLES; i++) {
+			long position = (fileSize - 1) * i / (SAMPLES - 1);
+			position -= position % PA2Util.MAX_CHUNK;
+			int size = (int) Math.min(PA2Util.MAX_CHUNK, regionEnd(position)
+					- position);
+			int n = deflate.encode(slice(position, size), output);
+			raw += size;
+			encoded += n < 0 ? size : n;
+		}
+		return encoded <= raw * MAX_SAMPLE_RATIO ? deflate : null;
+	}
+
+	/**
+	 * Send the open request until it is replied.
+	 * 
+	 * @param digest
+	 *            SHA-256 digest of the file
+	 * @return false if it is sent too many times.
+	 * @throws InterruptedException
+	 */
+	private boolean open(byte[] digest) throws InterruptedException {
+		PA2FTP request = new PA2FTP(transferId, codec == null ? PayloadCodec.NONE
+				: codec.id(), fileName, fileSize, 0, digest);
+		while (!opened) {
+			long now = new Date().getTime();
+			if (openTransmissions == 0 || now - openSentTime >= rtt.rto()) {
+				if (openTransmissions >= PA2Util.MAX_RETRANSMISSION) {
+					return false;
+				}
+				if (openTransmissions > 0) {
+					rtt.backOff();
+				}
+				openSentTime = now;
+				openTransmissions++;
+				kernel.sendFileDataToHost(dst, request);
+			}
+			wait(Math.max(1, openSentTime + rtt.rto() - now));
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the transfer failed since the file received did not
+	 *         match the digest
+	 */
+	public synchronized boolean isCorrupted() {
+		return corrupted;
+	}
+
+	/**
+	 * @return offset the transfer is resumed at, 0 if it is sent from the
+	 *         start
+	 */
+	public synchronized long getResumedOffset() {
+		return resumedOffset;
+	}
+
+	/**
+	 * After a timeout, take all the segments not selectively acknowledged as
+	 * lost, and start again from a window of one segment.
+	 */
+	private void onTimeout() {
+		rtt.backOff();
+		ssthresh = Math.max(pipe() / 2.0, 2);
+		cwnd = 1;
+		inRecovery = false;
+		duplicateAcks = 0;
+		for (Segment s : inFlight) {
+			if (!s.selectivelyAcked) {
+				s.lost = true;
+			}
+		}
+	}
+
+	/**
+	 * @return number of segments sent and thought to be still in the network
+	 */
+	private int pipe() {
+		int pipe = 0;
+		for (Segment s : inFlight) {
+			if (!s.selectivelyAcked && !s.lost) {
+				pipe++;
+			}
+		}
+		return pipe;
+	}
+
+	/**
+	 * Send the lost segments again, until the congestion window is full.
+	 * 
+	 * @return true if there is room in the congestion window and the window
+	 *         for a new segment.
+	 */
+	private boolean fillWindow() {
+		int pipe = pipe();
+		for (Segment s : inFlight) {
+			if (pipe >= (int) cwnd) {
+				return false;
+			}
+			if (s.lost) {
+				s.lost = false;
+				send(s, new Date().getTime());
+				pipe++;
+			}
+		}
+		return pipe < (int) cwnd && inFlight.size() < PA2Util.WINDOW_SIZE
+				&& nextOffset < fileSize;
+	}
+
+	/**
+	 * Put a new segment made by nextSegment() in the window and send it. If
+	 * the congestion window has shrunk while it was made, it is left to
+	 * fillWindow() instead.
+	 * 
+	 * @param s
+	 */
+	private void publish(Segment s) {
+		int pipe = pipe();
+		nextOffset = s.end;
+		rawBytes += s.end - s.start;
+		encodedBytes += s.pf.fileData.remaining();
+		inFlight.addLast(s);
+		if (pipe < (int) cwnd) {
+			send(s, new Date().getTime());
+		} else {
+			s.lost = true;
+		}
+	}
+
+	/**
+	 * Make a new segment. With a codec, it carries as much of the file as
+	 * compresses into SEGMENT_SIZE bytes, up to MAX_CHUNK, halving the chunk
+	 * until it does. Otherwise, or if even a chunk of two segments does not
+	 * compress into one, it carries SEGMENT_SIZE bytes as they are.
+	 * 
+	 * Called without the lock by the thread of run() only, since it touches
+	 * nothing but the chunk size, the encode buffer and the mapped regions.
+	 * 
+	 * @param start
+	 *            nextOffset, where the segment starts
+	 * @return the segment, not published yet
+	 * @throws IOException
+	 */
+	private Segment nextSegment(long start) throws IOException {
+		int limit = (int) Math.min(PA2Util.MAX_CHUNK, regionEnd(start)
+				- start);
+		Segment s = new Segment();
+		s.start = start;
+		if (codec != null) {
+			int size = Math.min(chunkSize, limit);
+			while (size > SEGMENT_SIZE) {
+				int n = codec.encode(slice(s.start, size), encodeBuffer);
+				if (n >= 0) {
+					// fill about 90% of the next segment at the same ratio.
+					chunkSize = (int) Math.max(2 * SEGMENT_SIZE, Math.min(
+							PA2Util.MAX_CHUNK, (long) size * SEGMENT_SIZE * 9
+									/ 10 / Math.max(n, 1)));
+					s.end = s.start + size;
+					s.pf = new PA2FTP(transferId, codec.id(), fileName,
+							fileSize, s.end, Arrays.copyOf(encodeBuffer, n));
+					return s;
+				}
+				size /= 2;
+				chunkSize = Math.max(2 * SEGMENT_SIZE, size);
+			}
+		}
+		int size = Math.min(SEGMENT_SIZE, limit);
+		s.end = s.start + size;
+		s.pf = new PA2FTP(transferId, PayloadCodec.NONE, fileName, fileSize,
+				s.end, slice(s.start, size));
+		return s;
+	}
+
+	/**
+	 * @param offset
+	 * @return end of the region of the offset, or of the file
+	 */
+	private long regionEnd(long offset) {
+		return Math.min(fileSize, (offset / REGION_SIZE + 1) * REGION_SIZE);
+	}
+
+	/**
+	 * Get a part of the file without copy. The region of the part is mapped
+	 * if it is not yet.
+	 * 
+	 * @param start
+	 *            offset of the part in the file
+	 * @param size
+	 *            not crossing a region
+	 * @return the part, a slice of the mapped region
+	 * @throws IOException
+	 */
+	private ByteBuffer slice(long start, int size) throws IOException {
+		int index = (int) (start / REGION_SIZE);
+		if (regions[index] == null) {
+			long position = index * REGION_SIZE;
+			regions[index] = channel.map(FileChannel.MapMode.READ_ONLY,
+					position, Math.min(REGION_SIZE, fileSize - position));
+		}
+		ByteBuffer bb = regions[index].duplicate();
+		bb.position((int) (start - index * REGION_SIZE));
+		bb.limit(bb.position() + size);
+		return bb.slice();
+	}
+
+	/**
+	 * Release the mapped regions before the acknowledged data.
+	 */
+	private void releaseRegions() {
+		for (int i = (int) (ackedOffset / REGION_SIZE) - 1; i >= 0
+				&& regions[i] != null; i--) {
+			regions[i] = null;
+		}
+	}
+
+	private void send(Segment s, long now) {
+		s.sentTime = now;
+		s.transmissions++;
+		kernel.sendFileDataToHost(dst, s.pf);
+	}
+
+	/**
+	 * Process an ACK of this transfer.
+	 * 
+	 * @param ack
+	 */
+	public synchronized void onAck(PA2ACK ack) {
+		if (ack.transferId != transferId) {
+			return;
+		}
+		long now = new Date().getTime();
+		if (ack.ackOffset < 0) {
+			// the file received does not match the digest.
+			corrupted = true;
+			notify();
+			return;
+		}
+		if (!opened) {
+			// reply to the open request, resume where the receiver is, with
+			// the codec it accepted.
+			opened = true;
+			ackedOffset = Math.min(Math.max(ack.ackOffset, 0), fileSize);
+			resumedOffset = ackedOffset;
+			nextOffset = ackedOffset;
+			if (codec != null && ack.codec != codec.id()) {
+				codec = null;
+			}
+			if (openTransmissions == 1) {
+				rtt.sample(now - openSentTime);
+			}
+			notify();
+			return;
+		}
+		// send time of the latest segment newly acknowledged and sent once.
+		long sampleTime = -1;
+		int acked = 0; // segments newly acknowledged.
+		if (ack.ackOffset > ackedOffset) {
+			ackedOffset = Math.min(ack.ackOffset, fileSize);
+			while (!inFlight.isEmpty()
+					&& inFlight.peekFirst().end <= ackedOffset) {
+				Segment s = inFlight.pollFirst();
+				if (!s.selectivelyAcked) {
+					acked++;
+					if (s.transmissions == 1) {
+						sampleTime = Math.max(sampleTime, s.sentTime);
+					}
+				}
+			}
+			duplicateAcks = 0;
+			if (inRecovery && ackedOffset < recoveryOffset
+					&& !inFlight.isEmpty()
+					&& !inFlight.peekFirst().selectivelyAcked) {
+				// partial ACK: the next hole is lost as well.
+				inFlight.peekFirst().lost = true;
+			} else if (ackedOffset >= recoveryOffset) {
+				inRecovery = false;
+			}
+		} else if (ack.blockStarts.length > 0) {
+			// data after the first segment has arrived, but not the segment.
+			duplicateAcks++;
+		}
+		for (Segment s : inFlight) {
+			for (int i = 0; i < ack.blockStarts.length; i++) {
+				if (!s.selectivelyAcked && s.start >= ack.blockStarts[i]
+						&& s.end <= ack.blockEnds[i]) {
+					s.selectivelyAcked = true;
+					s.lost = false;
+					acked++;
+					if (s.transmissions == 1) {
+						sampleTime = Math.max(sampleTime, s.sentTime);
+					}
+				}
+			}
+		}
+		if (!inRecovery) {
+			if (cwnd < ssthresh) {
+				cwnd += acked;
+			} else {
+				cwnd += (double) acked / cwnd;
+			}
+			cwnd = Math.min(cwnd, PA2Util.WINDOW_SIZE);
+		}
+		if (duplicateAcks == 3 && !inRecovery && !inFlight.isEmpty()
+				&& !inFlight.peekFirst().selectivelyAcked) {
+			// fast retransmit, halve the window.
+			ssthresh = Math.max(pipe() / 2.0, 2);
+			cwnd = ssthresh;
+			inRecovery = true;
+			recoveryOffset = nextOffset;
+			Segment first = inFlight.peekFirst();
+			first.lost = false;
+			send(first, now);
+		}
+		if (sampleTime >= 0) {
+			rtt.sample(now - sampleTime);
+		}
+		notify();
+	}
+
+	/**
+	 * Used by the STATS command.
+	 */
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Transfer = ");
+		sb.append(transferId);
+		sb.append(", File = ");
+		sb.append(fileName);
+		sb.append(", Destination = ");
+		sb.append(dst);
+		sb.append(", Acked = ");
+		sb.append(ackedOffset);
+		sb.append("/");
+		sb.append(fileSize);
+		sb.append(", Window = ");
+		sb.append((int) cwnd);
+		sb.append(inRecovery ? " (recovery)" : "");
+		if (codec != null) {
+			sb.append(", Codec = ");
+			sb.append(codec.name());
+			sb.append(String.format(", Ratio = %.2f", encodedBytes == 0 ? 1.0
+					: (double) rawBytes / encodedBytes));
+		}
+		return sb.toString();
+	}
+}
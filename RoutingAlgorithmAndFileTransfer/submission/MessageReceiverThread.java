@@ -1,7 +1,7 @@
 import java.io.File;
-import java.io.FileOutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
 
 /**
  * A thread to receive and process message from the socket.
@@ -21,15 +21,17 @@ public class MessageReceiverThread extends Thread {
 	}
 
 	public void run() {
+		// one buffer for all the packets. A packet is processed before the
+		// next one is received, and whatever is kept is copied out of it.
+		byte[] receiveData = new byte[PA2Util.MSS];
+		DatagramPacket receivePacket = new DatagramPacket(receiveData,
+				PA2Util.MSS);
 		while (true) {
-			byte[] receiveData = new byte[PA2Util.MSS];
 			try {
-				DatagramPacket receivePacket = new DatagramPacket(receiveData,
-						PA2Util.MSS);
+				receivePacket.setData(receiveData);
 				receiveSocket.receive(receivePacket);
-				byte[] data = receivePacket.getData();
-				PA2TCP msg = PA2TCP.deserialize(data, 0,
-						receivePacket.getLength());
+				PA2TCP msg = PA2TCP.decode(ByteBuffer.wrap(receiveData, 0,
+						receivePacket.getLength()));
 				if (msg == null) {
 					// null means the packet cannot be parsed,
 					// this is either caused by bit error or unmatched checksum.
@@ -53,6 +55,12 @@ public class MessageReceiverThread extends Thread {
 		case (PA2Util.UPDATE_ROUTE_TAG):
 			kernel.updateRouteFromMsg(msg);
 			break;
+		case (PA2Util.UPDATE_DELTA_TAG):
+			kernel.updateDeltaFromMsg(msg);
+			break;
+		case (PA2Util.RESYNC_TAG):
+			kernel.resyncFromMsg(msg);
+			break;
 		case (PA2Util.LINK_DOWN_TAG):
 			kernel.shutDownLinkFromMsg(msg);
 			break;
@@ -80,79 +88,98 @@ public class MessageReceiverThread extends Thread {
 	 *            the "network&transport" layer packet
 	 */
 	public void dealWithTransferACKMsg(PA2TCP msg) {
-		if (msg.destinationAddress.equals(kernel.myAddress)) {
-			// if the ACK is sent to me, interrupt in the retransmission loop in
-			// CLIProcessor thread to send out the next segment.
-			kernel.cliProcesser.interrupt();
+		if (msg.getDestinationAddress().equals(kernel.myAddress)) {
+			// if the ACK is sent to me, pass it to the file sender of the
+			// transfer to slide the window.
+			PA2ACK ack;
+			try {
+				ack = PA2ACK.decode(msg.payload());
+			} catch (Exception e) {
+				// a truncated ACK.
+				return;
+			}
+			FileSender sender = kernel.fileSenders.get(ack.transferId);
+			if (sender != null) {
+				sender.onAck(ack);
+			}
 		} else {
 			// if the ACK is sent to others, route the packet to the next hop.
-			String nextHop = kernel.getNextHop(msg.destinationAddress);
+			String nextHop = kernel.getNextHop(msg.getDestinationAddress());
 			if (!nextHop.equals(PA2Util.UNREACHABLE)) {
-				kernel.sendToHost(nextHop, msg);
+				kernel.forwardToHost(nextHop, msg);
 			}
 		}
 	}
 
 	public void dealWithTransferDataMsg(PA2TCP msg) throws Exception {
-		if (msg.destinationAddress.equals(kernel.myAddress)) {
+		if (msg.getDestinationAddress().equals(kernel.myAddress)) {
 			System.out.println("Packet received.");
-			System.out.println("Source = " + msg.sourceAddress);
-			System.out.println("Destination = " + msg.destinationAddress);
+			System.out.println("Source = " + msg.getSourceAddress());
+			System.out.println("Destination = " + msg.getDestinationAddress());
 			System.out.print(">");
-			PA2FTP pf = PA2FTP.deserialize(msg.payloadData, 0,
-					msg.payloadData.length);
-			File file = new File(pf.fileName);
-			if (!file.exists()) {
-				kernel.fileReceivingMap.put(pf.fileName, 0L);
-				try {
-					saveFileFromMsg(pf);
-				} catch (Exception e) {
+			PA2FTP pf = PA2FTP.decode(msg.payload());
+			if (!pf.checkCrc()) {
+				// corrupted on the way, the sender will send it again.
+				return;
+			}
+			String key = msg.getSourceAddress() + "#" + pf.transferId;
+			FileReceiver receiver = kernel.fileReceivers.get(key);
+			if (receiver == null) {
+				boolean exists = new File(pf.fileName).exists();
+				if (pf.offSet > 0) {
+					// data of a transfer not opened here. If the file is
+					// here, the last ACK of the transfer was lost.
+					if (exists) {
+						kernel.sendACKToHost(msg.getSourceAddress(),
+								new PA2ACK(pf.transferId, pf.fileName,
+										pf.fileSize, new long[0], new long[0]));
+					}
+					return;
+				}
+				if (exists) {
+					System.out.println("File Already Exists.");
+					System.out.print(">");
+					kernel.sendACKToHost(msg.getSourceAddress(), new PA2ACK(
+							pf.transferId, pf.fileName, pf.fileSize,
+							new long[0], new long[0]));
+					return;
 				}
-			} else if (file.exists()
-					&& kernel.fileReceivingMap.containsKey(pf.fileName)) {
-				try {
-					saveFileFromMsg(pf);
-				} catch (Exception e) {
+				// an open request. Take the file over from the earlier
+				// transfers, and resume from the checkpoint if any. The codec
+				// proposed is accepted if it is known here.
+				kernel.closeReceivers(pf.fileName);
+				byte[] digest = new byte[pf.fileData.remaining()];
+				pf.fileData.duplicate().get(digest);
+				receiver = new FileReceiver(pf.transferId, pf.fileName,
+						pf.fileSize, digest, PayloadCodec.forId(pf.codec));
+				kernel.fileReceivers.put(key, receiver);
+				if (receiver.getReceivedOffset() > 0) {
+					System.out.println("Resume receiving " + pf.fileName
+							+ " at offset " + receiver.getReceivedOffset());
+					System.out.print(">");
+				}
+			}
+			if (receiver.receive(pf)) {
+				if (receiver.isCorrupted()) {
+					System.out.println("File received corrupted. Deleted.");
+				} else {
+					System.out.println("File received successfully");
 				}
-			} else {
-				// file exists, not in receiving list
-				System.out.println("File Already Exists.");
 				System.out.print(">");
+				kernel.fileReceivers.remove(key);
 			}
-			kernel.sendACKToHost(msg.sourceAddress);
+			kernel.sendACKToHost(msg.getSourceAddress(), receiver.composeAck());
 		} else {
-			String nextHop = kernel.getNextHop(msg.destinationAddress);
+			String nextHop = kernel.getNextHop(msg.getDestinationAddress());
 			System.out.println("Packet received.");
-			System.out.println("Source = " + msg.sourceAddress);
-			System.out.println("Destination = " + msg.destinationAddress);
+			System.out.println("Source = " + msg.getSourceAddress());
+			System.out.println("Destination = " + msg.getDestinationAddress());
 			System.out.println("Next hop = " + nextHop);
 			System.out.print(">");
 			if (!nextHop.equals(PA2Util.UNREACHABLE)) {
-				kernel.sendToHost(nextHop, msg);
+				kernel.forwardToHost(nextHop, msg);
 			}
 		}
 	}
 
-	public void saveFileFromMsg(PA2FTP pf) throws Exception {
-		if (pf.offSet <= kernel.fileReceivingMap.get(pf.fileName)) {
-			return;
-		}
-		kernel.fileReceivingMap.put(pf.fileName, pf.offSet);
-		File file = new File(pf.fileName);
-		if (!file.exists())
-			file.createNewFile();
-
-		FileOutputStream fs = new FileOutputStream(file, true);
-		fs.write(pf.fileData);
-
-		fs.close();
-
-		if (pf.offSet == pf.fileSize) {
-			System.out.println("File received successfully");
-			System.out.print(">");
-			kernel.fileReceivingMap.remove(pf.fileName);
-		}
-
-	}
-
 }
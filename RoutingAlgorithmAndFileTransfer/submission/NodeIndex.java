@@ -0,0 +1,90 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Interning of node addresses. Every address(ip:port) known to the client is
+ * given a dense integer id, starting from 0, so that the routing tables can
+ * be stored as arrays indexed by the id. An id is never reused.
+ *
+ * Not thread safe. Used under the table lock of the BFKernel.
+ *
+ * @author Chao Chen
+ * @version 1.0
+ */
+public class NodeIndex {
+	/**
+	 * <address, id>
+	 */
+	private HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+	/**
+	 * address of each id.
+	 */
+	private ArrayList<String> addresses = new ArrayList<String>();
+
+	/**
+	 * address of each id packed by VectorCodec.pack(), -1 if it cannot be
+	 * packed.
+	 */
+	private long[] packedAddresses = new long[16];
+
+	/**
+	 * get the id of an address, and give it a new id if it is unknown.
+	 *
+	 * @param address
+	 * @return id of the address
+	 */
+	public int intern(String address) {
+		Integer id = ids.get(address);
+		if (id == null) {
+			id = addresses.size();
+			ids.put(address, id);
+			addresses.add(address);
+			if (id == packedAddresses.length) {
+				packedAddresses = Arrays.copyOf(packedAddresses, id * 2);
+			}
+			packedAddresses[id] = VectorCodec.pack(address);
+		}
+		return id;
+	}
+
+	/**
+	 * get the id of an address.
+	 *
+	 * @param address
+	 * @return id of the address; -1 if the address is unknown
+	 */
+	public int lookup(String address) {
+		Integer id = ids.get(address);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * get the address of an id.
+	 *
+	 * @param id
+	 * @return address
+	 */
+	public String address(int id) {
+		return addresses.get(id);
+	}
+
+	/**
+	 * get the packed address of an id.
+	 *
+	 * @param id
+	 * @return address packed by VectorCodec.pack(); -1 if it is not an IPv4
+	 *         address
+	 */
+	public long packedAddress(int id) {
+		return packedAddresses[id];
+	}
+
+	/**
+	 * @return number of the known nodes. All the ids are less than it.
+	 */
+	public int size() {
+		return addresses.size();
+	}
+}
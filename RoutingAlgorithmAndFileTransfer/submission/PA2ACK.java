@@ -0,0 +1,117 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The class entity of the acknowledgement of file data, carried by a
+ * TRANSFER_ACK packet.
+ * 
+ * The receiver acknowledges the offset before which all the data of the file
+ * has been received(cumulative acknowledgement), and up to MAX_SACK_BLOCKS
+ * ranges of data received after it(selective acknowledgement). An
+ * acknowledged offset of -1 tells the sender that the file received does
+ * not match the digest in the open request.
+ * 
+ * The codec is the id of the PayloadCodec the receiver accepted for the
+ * transfer, NONE if it does not know the one proposed by the sender.
+ * 
+ * @author Chao Chen
+ * @version 1.0
+ *
+ */
+public class PA2ACK {
+	//In the byte stream, the message is arranged as the following sequence.
+
+	// | component         |  type   |  length(byte)        |
+	// ______________________________________________________
+	// | transfer id       |  int    |   4                  |
+	// | codec             |  byte   |   1                  |
+	// | file name         |  String |   50                 |
+	// | ack offset        |  long   |   8                  |
+	// | block count       |  short  |   2                  |
+	// | block start       |  long   |   8                  | \ once per
+	// | block end         |  long   |   8                  | / block
+
+	/**
+	 * length of the message without blocks.
+	 */
+	public static final int HEADER_LENGTH = 65;
+
+	int transferId;
+	byte codec = PayloadCodec.NONE;
+	String fileName;
+	long ackOffset; // all the data before this offset has been received.
+	long[] blockStarts; // ranges [start, end) received after ackOffset.
+	long[] blockEnds;
+
+	/**
+	 * Constructor
+	 */
+	public PA2ACK() {
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param transferId
+	 * @param fileName
+	 * @param ackOffset
+	 * @param blockStarts
+	 * @param blockEnds
+	 */
+	public PA2ACK(int transferId, String fileName, long ackOffset,
+			long[] blockStarts, long[] blockEnds) {
+		this.transferId = transferId;
+		this.fileName = fileName;
+		this.ackOffset = ackOffset;
+		this.blockStarts = blockStarts;
+		this.blockEnds = blockEnds;
+	}
+
+	/**
+	 * Convert the message into byte array.
+	 * 
+	 * @return byte array format of the message
+	 */
+	public byte[] serialize() {
+		byte[] output = new byte[HEADER_LENGTH + blockStarts.length * 16];
+		ByteBuffer bb = ByteBuffer.wrap(output);
+		bb.putInt(transferId);
+		bb.put(codec);
+		bb.put(PA2Util.strToBytes(fileName));
+		bb.putLong(ackOffset);
+		bb.putShort((short) blockStarts.length);
+		for (int i = 0; i < blockStarts.length; i++) {
+			bb.putLong(blockStarts[i]);
+			bb.putLong(blockEnds[i]);
+		}
+		return output;
+	}
+
+	/**
+	 * Extract the PA2ACK message from a buffer.
+	 * 
+	 * @param bb
+	 *            buffer holding the message from position to limit
+	 * @return instance of PA2ACK
+	 * @throws Exception
+	 *             if the message is truncated
+	 */
+	public static PA2ACK decode(ByteBuffer bb) throws Exception {
+		PA2ACK ack = new PA2ACK();
+		bb = bb.duplicate();
+		ack.transferId = bb.getInt();
+		ack.codec = bb.get();
+		byte[] fileNameBytes = new byte[50];
+		bb.get(fileNameBytes);
+		ack.fileName = PA2Util.bytesToStr(fileNameBytes);
+		ack.ackOffset = bb.getLong();
+		int count = Math.min(bb.getShort() & 0xFFFF, bb.remaining() / 16);
+		ack.blockStarts = new long[count];
+		ack.blockEnds = new long[count];
+		for (int i = 0; i < count; i++) {
+			ack.blockStarts[i] = bb.getLong();
+			ack.blockEnds[i] = bb.getLong();
+		}
+		return ack;
+	}
+
+}
@@ -1,8 +1,23 @@
 import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
 
 /**
  * The class entity for application layer protocol used for file transferring.
  * 
+ * The file data is kept as a view of a buffer, so that it is neither copied
+ * when a message is decoded from a received packet nor when it is written
+ * into a packet to send.
+ * 
+ * Every message carries a CRC32C of the rest of it, computed by the sender
+ * and checked by the receiver, so that it is protected end to end whatever
+ * the links and the relay nodes do to it. A message with offset 0 is the open
+ * request of a transfer, and its fileData is the SHA-256 digest of the whole
+ * file.
+ * 
+ * The codec of the open request is the one the sender proposes for the
+ * transfer, and that of a segment tells how its fileData is compressed. The
+ * offset is always the one in the original file.
+ * 
  * @author Chao Chen
  * @version 1.0
  *
@@ -12,15 +27,53 @@ public class PA2FTP {
 
 	// | component         |  type   |  length(byte)        |
 	// ______________________________________________________
+	// | crc               |  int    |   4                  |
+	// | transfer id       |  int    |   4                  |
+	// | codec             |  byte   |   1                  |
 	// | file name         |  String |   50                 |
 	// | file size         |  long   |   8                  |
 	// | offset            |  long   |   8                  |
 	// | fileData          |  byte[] |   fileData.length    |
 	
+	int crc; // CRC32C of the rest of the message.
+	int transferId; // given by the sender, tells the transfers apart.
+	byte codec = PayloadCodec.NONE; // id of the PayloadCodec of fileData.
 	String fileName;
 	long fileSize;
 	long offSet; // the index of fileData's last byte in the original file .
-	byte[] fileData;
+	ByteBuffer fileData; // position to limit
+
+	/**
+	 * the message after the crc field as received, null if the message is
+	 * not a received one.
+	 */
+	private ByteBuffer received;
+
+	/**
+	 * fileName padded to 50 bytes, encoded once for the crc and every
+	 * serialization of the message.
+	 */
+	private byte[] fileNameBytes;
+
+	/**
+	 * CRC32C and header buffer of a thread, reused for every message.
+	 */
+	private static class CrcScratch {
+		CRC32C crc32c = new CRC32C();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH - 4);
+	}
+
+	private static final ThreadLocal<CrcScratch> crcScratch = new ThreadLocal<CrcScratch>() {
+		@Override
+		protected CrcScratch initialValue() {
+			return new CrcScratch();
+		}
+	};
+	
+	/**
+	 * length of the header before the file data.
+	 */
+	public static final int HEADER_LENGTH = 75;
 	
 	/**
 	 * Constructor
@@ -31,18 +84,90 @@ public class PA2FTP {
 	/**
 	 * Constructor
 	 * 
+	 * @param transferId
+	 * @param codec
+	 * @param fileName
+	 * @param fileSize
+	 * @param offSet
+	 * @param data
+	 */
+	public PA2FTP(int transferId, byte codec, String fileName,
+			long fileSize, long offSet, byte[] data) {
+		this.transferId = transferId;
+		this.codec = codec;
+		this.fileName = fileName;
+		this.fileSize = fileSize;
+		this.offSet = offSet;
+		this.fileData = ByteBuffer.wrap(data);
+		this.crc = computeCrc();
+	}
+
+	/**
+	 * Constructor with the file data as a view of a buffer, which is not
+	 * copied until the message is serialized.
+	 * 
+	 * @param transferId
+	 * @param codec
 	 * @param fileName
 	 * @param fileSize
 	 * @param offSet
 	 * @param data
+	 *            position to limit
 	 */
-	public PA2FTP(String fileName, long fileSize, long offSet, byte[] data) {
+	public PA2FTP(int transferId, byte codec, String fileName,
+			long fileSize, long offSet, ByteBuffer data) {
+		this.transferId = transferId;
+		this.codec = codec;
 		this.fileName = fileName;
 		this.fileSize = fileSize;
 		this.offSet = offSet;
 		this.fileData = data;
+		this.crc = computeCrc();
 	}
 
+	/**
+	 * @return CRC32C of the message but the crc field
+	 */
+	public int computeCrc() {
+		CrcScratch scratch = crcScratch.get();
+		ByteBuffer header = scratch.header;
+		header.clear();
+		header.putInt(transferId);
+		header.put(codec);
+		header.put(fileNameBytes());
+		header.putLong(fileSize);
+		header.putLong(offSet);
+		header.flip();
+		CRC32C crc32c = scratch.crc32c;
+		crc32c.reset();
+		crc32c.update(header);
+		crc32c.update(fileData.duplicate());
+		return (int) crc32c.getValue();
+	}
+
+	/**
+	 * @return true if the message is not corrupted
+	 */
+	public boolean checkCrc() {
+		if (received == null) {
+			return crc == computeCrc();
+		}
+		CRC32C crc32c = crcScratch.get().crc32c;
+		crc32c.reset();
+		crc32c.update(received.duplicate());
+		return crc == (int) crc32c.getValue();
+	}
+
+	private byte[] fileNameBytes() {
+		if (fileNameBytes == null) {
+			fileNameBytes = PA2Util.strToBytes(fileName);
+		}
+		return fileNameBytes;
+	}
+
+	// crc=4
+	// transferId=4
+	// codec=1
 	// fileName=50
 	// fileSize=8
 	// offSet=8
@@ -52,16 +177,34 @@ public class PA2FTP {
 	 * Convert the message into byte array.
 	 * 
 	 * @return byte array format of the message
-	 * @throws Exception
 	 */
-	public byte[] serialize() throws Exception {
-		byte[] output = new byte[66 + fileData.length];
-		ByteBuffer bb = ByteBuffer.wrap(output);
-		bb.put(PA2Util.strToBytes(fileName));
+	public byte[] serialize() {
+		byte[] output = new byte[serializedLength()];
+		serialize(ByteBuffer.wrap(output));
+		return output;
+	}
+
+	/**
+	 * @return length of the message in bytes
+	 */
+	public int serializedLength() {
+		return HEADER_LENGTH + fileData.remaining();
+	}
+
+	/**
+	 * Write the message into a buffer.
+	 * 
+	 * @param bb
+	 *            buffer with at least serializedLength() bytes remaining
+	 */
+	public void serialize(ByteBuffer bb) {
+		bb.putInt(crc);
+		bb.putInt(transferId);
+		bb.put(codec);
+		bb.put(fileNameBytes());
 		bb.putLong(fileSize);
 		bb.putLong(offSet);
-		bb.put(fileData);
-		return output;
+		bb.put(fileData.duplicate());
 	}
 
 	/**
@@ -75,15 +218,31 @@ public class PA2FTP {
 	 */
 	public static PA2FTP deserialize(byte[] data, int offset, int length)
 			throws Exception {
+		return decode(ByteBuffer.wrap(data, offset, length));
+	}
+
+	/**
+	 * Extract the PA2FTP message from a buffer. The file data is a slice of
+	 * the buffer.
+	 * 
+	 * @param bb
+	 *            buffer holding the message from position to limit
+	 * @return instance of PA2FTP
+	 * @throws Exception
+	 */
+	public static PA2FTP decode(ByteBuffer bb) throws Exception {
 		PA2FTP pf = new PA2FTP();
-		ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
-		byte[] fileNameBytes = new byte[50];
-		bb.get(fileNameBytes);
-		pf.fileName = PA2Util.bytesToStr(fileNameBytes);
+		bb = bb.duplicate();
+		pf.crc = bb.getInt();
+		pf.received = bb.slice();
+		pf.transferId = bb.getInt();
+		pf.codec = bb.get();
+		pf.fileNameBytes = new byte[50];
+		bb.get(pf.fileNameBytes);
+		pf.fileName = PA2Util.bytesToStr(pf.fileNameBytes);
 		pf.fileSize = bb.getLong();
 		pf.offSet = bb.getLong();
-		pf.fileData = new byte[length - 66];
-		bb.get(pf.fileData);
+		pf.fileData = bb.slice();
 		return pf;
 	}
 
@@ -1,17 +1,38 @@
 import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The Class entity of network&transport layer protocol packet. Named PA2TCP
  * 
  * For Bellman Ford information exchange use, it behaves like udp. For file
- * transfer use, it behaves like stop-and-wait tcp.
+ * transfer use, it behaves like tcp with a sliding window.
+ * 
+ * A packet decoded from a buffer is a view of the buffer: the addresses are
+ * read when they are first asked for and the payload is a slice, not a copy.
+ * It is valid until the buffer is reused.
  * 
  * @author Chao Chen
  * @version 1.0
  *
  */
 public class PA2TCP {
+	/**
+	 * length of the header and the checksum.
+	 */
+	public static final int HEADER_LENGTH = 26;
+
+	/**
+	 * offset of the payload in the packet.
+	 */
+	private static final int PAYLOAD_OFFSET = 18;
+
+	/**
+	 * the most addresses kept in each of the address caches.
+	 */
+	private static final int MAX_CACHED_ADDRESSES = 4096;
+
 	//In the byte stream, the packet is arranged as the following sequence.
 
 	// | component         |  type   |  length(byte)        |
@@ -25,8 +46,15 @@ public class PA2TCP {
 	// | payloadData       |  byte[] |   payloadData.length |
 	// | checksum          |  long   |   8                  |
 
-	String sourceAddress; //source IP:source port i.e. 192.168.0.8:12340
-	String destinationAddress; // destination IP:destination port i.e. 192.168.0.10:43210
+	/**
+	 * <ip:port, packed address> and <packed address, ip:port>, so that an
+	 * address is parsed or formatted only once.
+	 */
+	private static ConcurrentHashMap<String, Long> packedAddresses = new ConcurrentHashMap<String, Long>();
+	private static ConcurrentHashMap<Long, String> addressStrings = new ConcurrentHashMap<Long, String>();
+
+	private String sourceAddress; //source IP:source port i.e. 192.168.0.8:12340
+	private String destinationAddress; // destination IP:destination port i.e. 192.168.0.10:43210
 
 	/**
 	 * to indicate message type, specified in PA2Util.java
@@ -37,7 +65,21 @@ public class PA2TCP {
 	int length;
 	long checksum;
 
-	public byte[] payloadData;
+	/**
+	 * payload of a packet to be sent, or the copy of the payload of a
+	 * received packet once getPayload() is called.
+	 */
+	private byte[] payloadData;
+
+	/**
+	 * file data to be sent, written straight into the packet.
+	 */
+	private PA2FTP filePayload;
+
+	/**
+	 * the whole received packet, position 0 to limit.
+	 */
+	private ByteBuffer raw;
 
 	public PA2TCP() {
 	}
@@ -67,9 +109,28 @@ public class PA2TCP {
 		}
 	}
 
+	/**
+	 * Constructor with raw payload
+	 * 
+	 * @param type
+	 *            message type
+	 * @param sender
+	 *            sender's ip:port
+	 * @param receiver
+	 *            receiver's ip:port
+	 * @param payload
+	 *            payload bytes
+	 */
+	public PA2TCP(short type, String sender, String receiver, byte[] payload) {
+		this.type = type;
+		this.sourceAddress = sender;
+		this.destinationAddress = receiver;
+		this.payloadData = payload;
+	}
+
 	/**
 	 * Constructor with PA2FTP-type payload used to encapsulate file data to
-	 * send.
+	 * send. The file data is not copied until the packet is serialized.
 	 * 
 	 * @param type
 	 *            message type
@@ -84,12 +145,77 @@ public class PA2TCP {
 		this.type = type;
 		this.sourceAddress = sender;
 		this.destinationAddress = receiver;
-		try {
-			this.payloadData = pf.serialize();
-		} catch (Exception e) {
-			this.payloadData = null;
+		this.filePayload = pf;
+	}
+
+	/**
+	 * @return source ip:port
+	 */
+	public String getSourceAddress() {
+		if (sourceAddress == null && raw != null) {
+			sourceAddress = addressString(raw.getInt(0), raw.getShort(8));
+		}
+		return sourceAddress;
+	}
+
+	/**
+	 * @return destination ip:port
+	 */
+	public String getDestinationAddress() {
+		if (destinationAddress == null && raw != null) {
+			destinationAddress = addressString(raw.getInt(4),
+					raw.getShort(10));
+		}
+		return destinationAddress;
+	}
+
+	/**
+	 * @return the payload as a byte array; null if there is no payload. The
+	 *         payload of a received packet is copied at the first call.
+	 */
+	public byte[] getPayload() {
+		if (payloadData == null) {
+			if (filePayload != null) {
+				payloadData = filePayload.serialize();
+			} else if (raw != null && payloadLength() > 0) {
+				payloadData = new byte[payloadLength()];
+				payload().get(payloadData);
+			}
+		}
+		return payloadData;
+	}
+
+	/**
+	 * @return the payload of a received packet, a slice of the packet
+	 *         without copy; null if the packet is not a received one.
+	 */
+	public ByteBuffer payload() {
+		if (raw == null) {
+			return null;
 		}
+		ByteBuffer bb = raw.duplicate();
+		bb.position(PAYLOAD_OFFSET);
+		bb.limit(PAYLOAD_OFFSET + payloadLength());
+		return bb.slice();
+	}
 
+	/**
+	 * @return the whole received packet as it is on the wire, to be
+	 *         forwarded without serializing it again; null if the packet is
+	 *         not a received one.
+	 */
+	public ByteBuffer rawPacket() {
+		return raw == null ? null : raw.duplicate();
+	}
+
+	private int payloadLength() {
+		if (raw != null) {
+			return raw.limit() - HEADER_LENGTH;
+		}
+		if (filePayload != null) {
+			return filePayload.serializedLength();
+		}
+		return payloadData == null ? 0 : payloadData.length;
 	}
 
 	/**
@@ -99,23 +225,52 @@ public class PA2TCP {
 	 * @throws Exception
 	 */
 	public byte[] serialize() throws Exception {
-		length = (26 + ((payloadData == null) ? 0 : payloadData.length));
-		byte[] output = new byte[length];
-		ByteBuffer bb = ByteBuffer.wrap(output);
-		bb.put(InetAddress.getByName(sourceAddress.split(":")[0]).getAddress());
-		bb.put(InetAddress.getByName(destinationAddress.split(":")[0])
-				.getAddress());
-		bb.putShort(Short.valueOf(sourceAddress.split(":")[1]));
-		bb.putShort(Short.valueOf(destinationAddress.split(":")[1]));
+		byte[] output = new byte[serializedLength()];
+		serialize(output, 0);
+		return output;
+	}
+
+	/**
+	 * @return length of the packet in bytes
+	 */
+	public int serializedLength() {
+		return HEADER_LENGTH + payloadLength();
+	}
+
+	/**
+	 * Write the packet into a byte array, so that a buffer can be reused for
+	 * many packets.
+	 * 
+	 * @param output
+	 *            byte array with at least serializedLength() bytes after
+	 *            offset
+	 * @param offset
+	 * @return length of the packet
+	 * @throws Exception
+	 */
+	public int serialize(byte[] output, int offset) throws Exception {
+		length = serializedLength();
+		long source = packAddress(getSourceAddress());
+		long destination = packAddress(getDestinationAddress());
+		ByteBuffer bb = ByteBuffer.wrap(output, offset, length);
+		bb.putInt((int) (source >> 16));
+		bb.putInt((int) (destination >> 16));
+		bb.putShort((short) source);
+		bb.putShort((short) destination);
 		bb.putShort(type);
 		bb.putInt(length);
-		if (payloadData != null) {
+		if (filePayload != null) {
+			filePayload.serialize(bb);
+		} else if (raw != null) {
+			bb.put(payload());
+		} else if (payloadData != null) {
 			bb.put(payloadData);
 		}
-		checksum = PA2Util.calculateCheckSum(output, 0, length - 8);
+		checksum = PA2Util.calculateCheckSum(output, offset,
+				checksumLength(type, length));
 		bb.putLong(checksum);
 
-		return output;
+		return length;
 	}
 
 	/** extract the packet instance from the byte array
@@ -127,45 +282,93 @@ public class PA2TCP {
 	 */
 	public static PA2TCP deserialize(byte[] data, int offset, int length)
 			throws Exception {
-		if (length < 26) {
+		return decode(ByteBuffer.wrap(data, offset, length));
+	}
+
+	/**
+	 * extract the packet instance from a buffer. Only the checksum and the
+	 * type are read, the rest is read when it is asked for.
+	 * 
+	 * @param bb
+	 *            heap buffer holding the packet from position to limit
+	 * @return the PA2TCP packet instance, a view of the buffer; null if the
+	 *         packet is too short or the checksum does not match.
+	 */
+	public static PA2TCP decode(ByteBuffer bb) {
+		int length = bb.remaining();
+		if (length < HEADER_LENGTH) {
 			//the packet length must >=26
 			return null;
 		}
+		ByteBuffer raw = bb.slice();
 		//checksum calculated
-		long checksum1 = PA2Util.calculateCheckSum(data, offset, length - 8);
+		long checksum1 = PA2Util.calculateCheckSum(raw.array(),
+				raw.arrayOffset(), checksumLength(raw.getShort(12), length));
 		//checksum recorded in the packet
-		long checksum2 = PA2Util.bytesToLong(data, offset + length - 8);
+		long checksum2 = raw.getLong(length - 8);
 		if (checksum1 != checksum2) {
 			return null;
 		}
 		PA2TCP pp = new PA2TCP();
-		ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
-		pp.sourceAddress = InetAddress.getByAddress(
-				PA2Util.intToBytes(bb.getInt())).toString();
-		pp.destinationAddress = InetAddress.getByAddress(
-				PA2Util.intToBytes(bb.getInt())).toString();
-		pp.sourceAddress += ":" + bb.getShort();
-		pp.destinationAddress += ":" + bb.getShort();
-
-		pp.sourceAddress = pp.sourceAddress.split("/")[1];
-		pp.destinationAddress = pp.destinationAddress.split("/")[1];
-		pp.type = bb.getShort();
-		pp.length = bb.getInt();
-
-		if (pp.type == PA2Util.CHANGE_COST_TAG
-				|| pp.type == PA2Util.UPDATE_ROUTE_TAG
-				|| pp.type == PA2Util.TRANSFER_SEND_TAG) {
-			pp.payloadData = new byte[length - 26];
-			bb.get(pp.payloadData);
-		} else {
-			pp.payloadData = null;
-		}
-		pp.checksum = bb.getLong();
+		pp.raw = raw;
+		pp.type = raw.getShort(12);
+		pp.length = raw.getInt(14);
+		pp.checksum = checksum2;
 		return pp;
 	}
 
-	
-	/** 
+	/**
+	 * @return number of bytes from the start of a packet covered by the
+	 *         checksum. It is only the header for file data if
+	 *         CHECKSUM_FILE_DATA is false, which is checked end to end.
+	 */
+	private static int checksumLength(short type, int length) {
+		if (type == PA2Util.TRANSFER_SEND_TAG && !PA2Util.CHECKSUM_FILE_DATA) {
+			return PAYLOAD_OFFSET;
+		}
+		return length - 8;
+	}
+
+	/**
+	 * Pack an address(ip:port) into a long, IPv4 address in bits 16-47 and
+	 * the port in bits 0-15. A host name is resolved.
+	 */
+	private static long packAddress(String address)
+			throws UnknownHostException {
+		Long packed = packedAddresses.get(address);
+		if (packed != null) {
+			return packed;
+		}
+		long value = VectorCodec.pack(address);
+		if (value < 0) {
+			String[] hostPort = address.split(":");
+			byte[] ip = InetAddress.getByName(hostPort[0]).getAddress();
+			value = (ByteBuffer.wrap(ip).getInt() & 0xFFFFFFFFL) << 16
+					| (Integer.valueOf(hostPort[1]) & 0xFFFF);
+		}
+		if (packedAddresses.size() < MAX_CACHED_ADDRESSES) {
+			packedAddresses.put(address, value);
+		}
+		return value;
+	}
+
+	/**
+	 * Format an address read from a packet as ip:port.
+	 */
+	private static String addressString(int ip, short port) {
+		long packed = (ip & 0xFFFFFFFFL) << 16 | (port & 0xFFFF);
+		String address = addressStrings.get(packed);
+		if (address == null) {
+			address = VectorCodec.unpack(packed);
+			if (addressStrings.size() < MAX_CACHED_ADDRESSES) {
+				addressStrings.put(packed, address);
+			}
+		}
+		return address;
+	}
+
+
+	/**
 	 * Used when debugging, to inspect the packet sent and received.
 	 * 
 	 */
@@ -173,9 +376,9 @@ public class PA2TCP {
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("From: ");
-		sb.append(sourceAddress);
+		sb.append(getSourceAddress());
 		sb.append("\nTo: ");
-		sb.append(destinationAddress);
+		sb.append(getDestinationAddress());
 		sb.append("\nType: ");
 		switch (type) {
 		case PA2Util.CHANGE_COST_TAG:
@@ -196,19 +399,25 @@ public class PA2TCP {
 		case PA2Util.TRANSFER_ACK_TAG:
 			sb.append("ACK");
 			break;
+		case PA2Util.UPDATE_DELTA_TAG:
+			sb.append("UPDATE_DELTA");
+			break;
+		case PA2Util.RESYNC_TAG:
+			sb.append("RESYNC");
+			break;
 		default:
 			sb.append("UNKNOWN");
 			break;
 		}
 		sb.append("\nLength: ");
 		sb.append(length);
-		if (type == PA2Util.UPDATE_ROUTE_TAG || type == PA2Util.CHANGE_COST_TAG) {
+		if (type == PA2Util.CHANGE_COST_TAG) {
 			sb.append("\nValue: ");
-			sb.append(new String(payloadData));
+			sb.append(new String(getPayload()));
 		}
 		sb.append("\nPayloadData: ");
-		sb.append(payloadData);
-		sb.append("\nChecksum: ");
+		sb.append(payloadLength());
+		sb.append(" bytes\nChecksum: ");
 		sb.append(checksum);
 
 		return sb.toString();
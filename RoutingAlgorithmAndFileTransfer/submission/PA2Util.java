@@ -23,13 +23,84 @@ public final class PA2Util {
 	public static final int MSS = 1400;
 	/**
 	 * Time in million second a file sender should wait for an ACK before
-	 * retransmission.
+	 * retransmission, until the round trip time to the destination is
+	 * measured.
 	 */
 	public static final long ACK_TIMEOUT = 100;
+	/**
+	 * Bounds in million second of the retransmission timeout derived from
+	 * the measured round trip time, and of its backoff.
+	 */
+	public static final long MIN_RTO = 20;
+	public static final long MAX_RTO = 4000;
 	/**
 	 * Maximum number of times should the sender try to retransmit one packet.
 	 */
 	public static final int MAX_RETRANSMISSION = 10;
+	/**
+	 * Maximum number of file segments sent and not yet acknowledged.
+	 */
+	public static final int WINDOW_SIZE = 32;
+	/**
+	 * Congestion window in segments a file sender starts with.
+	 */
+	public static final int INITIAL_WINDOW = 4;
+	/**
+	 * Maximum number of files sent at a time. More transfers wait until one
+	 * of them is done.
+	 */
+	public static final int MAX_TRANSFERS = 8;
+	/**
+	 * Bytes of a file received between two checkpoints of the receiver, from
+	 * which a transfer is resumed.
+	 */
+	public static final long CHECKPOINT_INTERVAL = 1024 * 1024;
+	/**
+	 * Compress the file data of the transfers, unless the file is found to be
+	 * compressed already. Each segment then carries up to MAX_CHUNK bytes of
+	 * the file, compressed on its own.
+	 */
+	public static final boolean COMPRESSION = true;
+	/**
+	 * Level of the deflate codec, from 1(fastest) to 9(smallest).
+	 */
+	public static final int COMPRESSION_LEVEL = 6;
+	/**
+	 * Maximum number of bytes of the file compressed into one segment.
+	 */
+	public static final int MAX_CHUNK = 64 * 1024;
+	/**
+	 * Maximum number of received ranges reported in an ACK after the
+	 * acknowledged offset.
+	 */
+	public static final int MAX_SACK_BLOCKS = 4;
+	/**
+	 * Send the distance vectors in the binary form of VectorCodec. Set to
+	 * false to talk to clients that only know the text form, which also turns
+	 * off the UPDATE_DELTA messages. Both forms are always accepted.
+	 */
+	public static final boolean BINARY_VECTOR = true;
+	/**
+	 * Cover the file data with the checksum of the PA2TCP packet, which is
+	 * checked at every hop. The file data is also protected end to end by the
+	 * CRC32C of PA2FTP, so on trusted links it can be set to false to check
+	 * only the header of TRANSFER_SEND packets at each hop. All the clients
+	 * must use the same value.
+	 */
+	public static final boolean CHECKSUM_FILE_DATA = true;
+	/**
+	 * Time in million second to wait for the missing fragments of a distance
+	 * vector before the received ones are dropped.
+	 */
+	public static final long REASSEMBLY_TIMEOUT = 3000;
+	/**
+	 * Maximum number of fragments of one distance vector.
+	 */
+	public static final int MAX_FRAGMENTS = 4096;
+	/**
+	 * Maximum number of bytes of fragments buffered for all the neighbors.
+	 */
+	public static final int MAX_REASSEMBLY_BYTES = 4 * 1024 * 1024;
 
 	// Message Header
 	public static final short UPDATE_ROUTE_TAG = 1;
@@ -38,6 +109,8 @@ public final class PA2Util {
 	public static final short CHANGE_COST_TAG = 4;
 	public static final short TRANSFER_SEND_TAG = 5;
 	public static final short TRANSFER_ACK_TAG = 6;
+	public static final short UPDATE_DELTA_TAG = 7;
+	public static final short RESYNC_TAG = 8;
 
 	// marks to help store data.
 	public static final double INFINTE_COST = 1.0E100;
@@ -53,6 +126,7 @@ public final class PA2Util {
 	public static final String TRANSFER_COMMAND = "TRANSFER";
 	public static final String ADD_PROXY_COMMAND = "ADDPROXY";
 	public static final String REMOVE_PROXY_COMMAND = "REMOVEPROXY";
+	public static final String STATS_COMMAND = "STATS";
 
 	/**
 	 * Convert the filename to a byte array of fixed length=50. if the filename
@@ -122,6 +196,10 @@ public final class PA2Util {
 	/**
 	 * Method to calculate the checksum of a part of byte array
 	 * 
+	 * It is the 16-bit one's complement of the one's complement sum of the
+	 * big-endian 16-bit words, an odd last byte padded with zero, as in the
+	 * Internet checksum.
+	 * 
 	 * @param b
 	 *            byte array
 	 * @param offSet
@@ -131,35 +209,47 @@ public final class PA2Util {
 	 * @return checksum of the specific part of byte array.
 	 */
 	public static long calculateCheckSum(byte[] b, int offSet, int length) {
-		long sum = 0;
-		long data;
+		// Final 1's complement value correction to 16-bits
+		return ~sumWords(b, offSet, length) & 0xFFFF;
+	}
 
-		// Handle all pairs
+	/**
+	 * One's complement sum of the 16-bit words of a part of byte array.
+	 * 
+	 * Eight bytes are added at a time as two 32-bit halves. Since 2^16 is 1
+	 * modulo 0xFFFF, a 32-bit half adds the same as its two words, so the
+	 * carries are folded only once at the end. A nonzero sum is kept in
+	 * 1..0xFFFF, the same as folding after every word.
+	 */
+	private static long sumWords(byte[] b, int offSet, int length) {
+		ByteBuffer bb = ByteBuffer.wrap(b);
+		long sum = 0;
+		while (length >= 8) {
+			long data = bb.getLong(offSet);
+			sum += (data >>> 32) + (data & 0xFFFFFFFFL);
+			offSet += 8;
+			length -= 8;
+		}
+		// Handle the remaining pairs
 		while (length > 1) {
-			data = (((b[offSet] << 8) & 0xFF00) | ((b[offSet + 1]) & 0xFF));
-			sum += data;
-			// 1's complement carry bit correction in 16-bits (detecting sign
-			// extension)
-			if ((sum & 0xFFFF0000) > 0) {
-				sum = sum & 0xFFFF;
-				sum += 1;
-			}
+			sum += ((b[offSet] << 8) & 0xFF00) | (b[offSet + 1] & 0xFF);
 			offSet += 2;
 			length -= 2;
 		}
 		// Handle remaining byte in odd length buffers
 		if (length > 0) {
-			sum += (b[offSet] << 8 & 0xFF00);
-			// 1's complement carry bit correction in 16-bits (detecting sign
-			// extension)
-			if ((sum & 0xFFFF0000) > 0) {
-				sum = sum & 0xFFFF;
-				sum += 1;
-			}
+			sum += (b[offSet] << 8) & 0xFF00;
+		}
+		return foldCarries(sum);
+	}
+
+	/**
+	 * 1's complement carry bit correction in 16-bits.
+	 */
+	private static long foldCarries(long sum) {
+		while ((sum >>> 16) != 0) {
+			sum = (sum & 0xFFFF) + (sum >>> 16);
 		}
-		// Final 1's complement value correction to 16-bits
-		sum = ~sum;
-		sum = sum & 0xFFFF;
 		return sum;
 	}
 
@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A compression codec of the file data carried by PA2FTP messages.
+ *
+ * The data of every segment is compressed on its own, so that a segment can
+ * be decoded whether the segments before it arrived or not. A codec is known
+ * by a one-byte id carried in the PA2FTP header; NONE is for data sent as it
+ * is. More codecs can be plugged in with register(), on both the sender and
+ * the receiver: the receiver only accepts a codec that it knows.
+ *
+ * An instance is shared by all the transfers, and must be thread safe.
+ *
+ * @author Chao Chen
+ * @version 1.0
+ */
+public abstract class PayloadCodec {
+	/**
+	 * id of data not compressed.
+	 */
+	public static final byte NONE = 0;
+
+	/**
+	 * codecs by id.
+	 */
+	private static final PayloadCodec[] codecs = new PayloadCodec[256];
+
+	static {
+		register(new DeflateCodec());
+	}
+
+	/**
+	 * Plug in a codec, in place of the one of the same id if any.
+	 *
+	 * @param codec
+	 */
+	public static synchronized void register(PayloadCodec codec) {
+		if (codec.id() == NONE) {
+			throw new IllegalArgumentException("Codec id " + NONE
+					+ " is reserved.");
+		}
+		codecs[codec.id() & 0xFF] = codec;
+	}
+
+	/**
+	 * @param id
+	 * @return the codec of the id; null for NONE or a codec unknown.
+	 */
+	public static synchronized PayloadCodec forId(byte id) {
+		return codecs[id & 0xFF];
+	}
+
+	/**
+	 * @return id carried in the PA2FTP header, not NONE
+	 */
+	public abstract byte id();
+
+	/**
+	 * @return name shown by the STATS command
+	 */
+	public abstract String name();
+
+	/**
+	 * Compress a chunk of the file.
+	 *
+	 * @param src
+	 *            the chunk from position to limit, which is not changed
+	 * @param dst
+	 *            array to write the compressed data into from index 0
+	 * @return length of the compressed data; -1 if it does not fit in dst
+	 */
+	public abstract int encode(ByteBuffer src, byte[] dst);
+
+	/**
+	 * Decompress a chunk of the file compressed by encode().
+	 *
+	 * @param src
+	 *            the compressed data from position to limit, which is not
+	 *            changed
+	 * @param dst
+	 *            array to write the chunk into from index 0
+	 * @return length of the chunk
+	 * @throws IOException
+	 *             if the data is not valid, or the chunk does not fit in dst
+	 */
+	public abstract int decode(ByteBuffer src, byte[] dst) throws IOException;
+}
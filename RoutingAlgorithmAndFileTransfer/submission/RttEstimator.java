@@ -0,0 +1,99 @@
+/**
+ * Estimation of the round trip time to one destination, and the
+ * retransmission timeout(RTO) derived from it, as in RFC 6298.
+ *
+ * SRTT and RTTVAR are smoothed from the samples with gains of 1/8 and 1/4,
+ * and RTO = SRTT + 4 * RTTVAR, kept within MIN_RTO and MAX_RTO. Before the
+ * first sample the RTO is ACK_TIMEOUT. Every timeout doubles the RTO, until
+ * a new sample is taken. Only segments sent once are sampled, since the ACK
+ * of a retransmitted segment cannot tell which of its copies arrived(Karn's
+ * algorithm).
+ *
+ * The estimator of a destination is kept by the BFKernel and shared by the
+ * transfers to it, so that a transfer starts from what the last one learned.
+ *
+ * @author Chao Chen
+ * @version 1.0
+ */
+public class RttEstimator {
+	/**
+	 * smoothed round trip time in million second, negative if no sample yet.
+	 */
+	private double srtt = -1;
+	private double rttvar = 0;
+
+	/**
+	 * the RTO is doubled this many times.
+	 */
+	private int backoff = 0;
+
+	private long samples = 0;
+	private long timeouts = 0;
+
+	/**
+	 * Take a round trip time sample of a segment sent only once.
+	 *
+	 * @param rtt
+	 *            time in million second from sending the segment to its ACK
+	 */
+	public synchronized void sample(long rtt) {
+		if (srtt < 0) {
+			srtt = rtt;
+			rttvar = rtt / 2.0;
+		} else {
+			rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+			srtt = 0.875 * srtt + 0.125 * rtt;
+		}
+		backoff = 0;
+		samples++;
+	}
+
+	/**
+	 * Double the RTO after a timeout.
+	 */
+	public synchronized void backOff() {
+		if (rto() < PA2Util.MAX_RTO) {
+			backoff++;
+		}
+		timeouts++;
+	}
+
+	/**
+	 * @return time in million second to wait for the ACK of a segment before
+	 *         sending it again
+	 */
+	public synchronized long rto() {
+		long rto;
+		if (srtt < 0) {
+			rto = PA2Util.ACK_TIMEOUT;
+		} else {
+			// 1 for the granularity of the clock.
+			rto = (long) Math.ceil(srtt + Math.max(1, 4 * rttvar));
+		}
+		rto = Math.max(rto, PA2Util.MIN_RTO) << backoff;
+		return Math.min(rto, PA2Util.MAX_RTO);
+	}
+
+	/**
+	 * Used by the STATS command.
+	 */
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("SRTT = ");
+		sb.append(srtt < 0 ? PA2Util.UNREACHABLE : String.format("%.1fms",
+				srtt));
+		sb.append(", RTTVAR = ");
+		sb.append(srtt < 0 ? PA2Util.UNREACHABLE : String.format("%.1fms",
+				rttvar));
+		sb.append(", RTO = ");
+		sb.append(rto());
+		sb.append("ms, Backoff = ");
+		sb.append(backoff);
+		sb.append(", Samples = ");
+		sb.append(samples);
+		sb.append(", Timeouts = ");
+		sb.append(timeouts);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,106 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+/**
+ * Micro-benchmark of BFKernel.sendToHost(), in packets per second. Not part
+ * of the client; built and run with "make benchmark".
+ *
+ * MSS-sized TRANSFER_SEND packets are sent to a local socket that drains
+ * them. "before" is the way packets were sent before sendToHost() kept the
+ * sending socket and the resolved addresses: a new socket, a name lookup and
+ * a new serialized array for every packet. "after" is sendToHost() itself.
+ *
+ * usage: java SendBenchmark [packets per round]
+ *
+ * @author Chao Chen
+ * @version 1.0
+ */
+public class SendBenchmark {
+	private static final int DEFAULT_PACKETS = 50000;
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		int packets = args.length > 0 ? Integer.valueOf(args[0])
+				: DEFAULT_PACKETS;
+
+		final DatagramSocket sink = new DatagramSocket();
+		Thread drainer = new Thread() {
+			public void run() {
+				DatagramPacket p = new DatagramPacket(new byte[PA2Util.MSS],
+						PA2Util.MSS);
+				try {
+					while (true) {
+						sink.receive(p);
+					}
+				} catch (Exception e) {
+				}
+			}
+		};
+		drainer.setDaemon(true);
+		drainer.start();
+
+		// a kernel on a free port, without neighbors.
+		DatagramSocket probe = new DatagramSocket();
+		int port = probe.getLocalPort();
+		probe.close();
+		File config = File.createTempFile("benchmark", ".txt");
+		config.deleteOnExit();
+		FileWriter fw = new FileWriter(config);
+		fw.write(port + " " + PA2Util.ACK_TIMEOUT + "\n");
+		fw.close();
+		BFKernel kernel = new BFKernel(config.getPath());
+
+		String dst = "127.0.0.1:" + sink.getLocalPort();
+		PA2FTP pf = new PA2FTP(1, PayloadCodec.NONE, "benchmark.bin",
+				1L << 30, FileSender.SEGMENT_SIZE,
+				new byte[FileSender.SEGMENT_SIZE]);
+		PA2TCP msg = new PA2TCP(PA2Util.TRANSFER_SEND_TAG, kernel.myAddress,
+				dst, pf);
+		System.out.println("Packet = " + msg.serializedLength()
+				+ " bytes, " + packets + " packets a round");
+
+		for (int round = 0; round <= ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < packets; i++) {
+				sendWithNewSocket(dst, msg);
+			}
+			report("before", round, packets, System.nanoTime() - start);
+		}
+		for (int round = 0; round <= ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < packets; i++) {
+				kernel.sendToHost(dst, msg);
+			}
+			report("after", round, packets, System.nanoTime() - start);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Send a packet the way sendToHost() did before, for comparison.
+	 */
+	private static void sendWithNewSocket(String hostAddress, PA2TCP msg)
+			throws Exception {
+		DatagramSocket clientSocket = new DatagramSocket();
+		InetAddress ipAddress = InetAddress.getByName(hostAddress.split(":")[0]);
+		int port = Integer.valueOf(hostAddress.split(":")[1]);
+		byte[] sendData = msg.serialize();
+		clientSocket.send(new DatagramPacket(sendData, sendData.length,
+				ipAddress, port));
+		clientSocket.close();
+	}
+
+	/**
+	 * Print the rate of a round. Round 0 warms up the JIT and is not
+	 * counted.
+	 */
+	private static void report(String mode, int round, int packets,
+			long nanos) {
+		System.out.println(String.format("%-6s round %d: %.0f packets/s%s",
+				mode, round, packets / (nanos / 1e9), round == 0 ? " (warm-up)"
+						: ""));
+	}
+}
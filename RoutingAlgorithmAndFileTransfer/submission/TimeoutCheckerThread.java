@@ -21,15 +21,7 @@ public class TimeoutCheckerThread extends Thread {
 			// The next time this thread should wake up and check dead node is
 			// related to
 			// the neighbor who sends the UPDATE_ROUTE earliest.
-			long nextCheckTimestamp = Long.MAX_VALUE;
-			for (String neighbor : kernel.neighbors.keySet()) {
-				if (kernel.neighbors.get(neighbor) != PA2Util.INFINTE_COST) {
-					// ignore already-dead node
-					nextCheckTimestamp = Math.min(nextCheckTimestamp,
-							kernel.lastHeardTimeTable.get(neighbor) + 3
-									* kernel.timeout * 1000);
-				}
-			}
+			long nextCheckTimestamp = kernel.getNextDeadNodeCheckTime();
 			long currentTime = new Date().getTime();
 			// if there is no active neighbor, sleep for 3*timeout, otherwise
 			// calculate the remaining time to the next wake up & check time stamp.
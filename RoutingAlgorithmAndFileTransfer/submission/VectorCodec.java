@@ -0,0 +1,351 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Encoder and decoder of the distance vector carried by an UPDATE_ROUTE
+ * packet.
+ *
+ * In the binary form, the payload is arranged as the following sequence.
+ *
+ * | component         |  type   |  length(byte)        |
+ * ______________________________________________________
+ * | version           |  byte   |   1                  |
+ * | entry count       |  varint |   1-5                |
+ * | destination IP    |  int    |   4                  | \
+ * | destination port  |  short  |   2                  |  > once per entry
+ * | cost              |  varint |   1-10               | /
+ *
+ * The cost is a fixed-point number of COST_SCALE units, plus one, so that 0
+ * stands for INFINTE_COST. Varints are unsigned, 7 bits a byte, low bits
+ * first.
+ *
+ * The legacy text form "ip:port=cost;ip:port=INF" is still accepted. It is
+ * told apart by its first byte, which is a digit of the first IP address.
+ *
+ * A vector may be preceded by a sequence header, numbering the updates sent
+ * to one neighbor. UPDATE_DELTA always carries it, as does UPDATE_ROUTE in the
+ * binary form.
+ *
+ * | component         |  type   |  length(byte)        |
+ * ______________________________________________________
+ * | SEQUENCED         |  byte   |   1                  |
+ * | sequence number   |  int    |   4                  |
+ * | vector            |  byte[] |   the rest           |
+ *
+ * A vector that does not fit in one packet is split into fragments, each
+ * carrying a slice of the encoded vector after this header.
+ *
+ * | component         |  type   |  length(byte)        |
+ * ______________________________________________________
+ * | FRAGMENT          |  byte   |   1                  |
+ * | vector id         |  int    |   4                  |
+ * | fragment index    |  short  |   2                  |
+ * | fragment count    |  short  |   2                  |
+ * | slice of vector   |  byte[] |   the rest           |
+ *
+ * @author Chao Chen
+ * @version 1.0
+ */
+public final class VectorCodec {
+
+	private VectorCodec() {
+	}
+
+	/**
+	 * version of the binary form, the first byte of the payload.
+	 */
+	public static final byte VERSION = 1;
+
+	/**
+	 * first byte of a fragment of a vector.
+	 */
+	public static final byte FRAGMENT = 2;
+
+	public static final int FRAGMENT_HEADER_LENGTH = 9;
+
+	/**
+	 * first byte of a vector preceded by a sequence number.
+	 */
+	public static final byte SEQUENCED = 3;
+
+	public static final int SEQUENCE_HEADER_LENGTH = 5;
+
+	/**
+	 * costs are sent in units of 1/COST_SCALE.
+	 */
+	public static final double COST_SCALE = 1000;
+
+	/**
+	 * the largest cost that is not sent as infinity.
+	 */
+	private static final double MAX_COST = 1.0E15;
+
+	/**
+	 * Receiver of the entries of a decoded vector.
+	 */
+	public interface EntryHandler {
+		/**
+		 * @param address
+		 *            destination ip:port
+		 * @param cost
+		 *            cost to the destination, PA2Util.INFINTE_COST if
+		 *            unreachable
+		 */
+		void onEntry(String address, double cost);
+	}
+
+	/**
+	 * Pack an address(ip:port) into a long, the IPv4 address in bits 16-47
+	 * and the port in bits 0-15.
+	 *
+	 * @param address
+	 * @return packed address; -1 if it is not an IPv4 address with a port.
+	 */
+	public static long pack(String address) {
+		String[] hostPort = address.split(":");
+		if (hostPort.length != 2) {
+			return -1;
+		}
+		String[] octets = hostPort[0].split("\\.");
+		if (octets.length != 4) {
+			return -1;
+		}
+		try {
+			long packed = 0;
+			for (int i = 0; i < 4; i++) {
+				int octet = Integer.parseInt(octets[i]);
+				if (octet < 0 || octet > 255) {
+					return -1;
+				}
+				packed = (packed << 8) | octet;
+			}
+			int port = Integer.parseInt(hostPort[1]);
+			if (port < 0 || port > 0xFFFF) {
+				return -1;
+			}
+			return (packed << 16) | port;
+		} catch (NumberFormatException ne) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Convert a packed address back to ip:port.
+	 *
+	 * @param packed
+	 * @return address
+	 */
+	public static String unpack(long packed) {
+		StringBuilder sb = new StringBuilder(21);
+		sb.append((packed >> 40) & 0xFF).append('.');
+		sb.append((packed >> 32) & 0xFF).append('.');
+		sb.append((packed >> 24) & 0xFF).append('.');
+		sb.append((packed >> 16) & 0xFF).append(':');
+		sb.append(packed & 0xFFFF);
+		return sb.toString();
+	}
+
+	/**
+	 * Clear the buffer and write the header of a binary vector.
+	 *
+	 * @param bb
+	 *            the buffer to reuse
+	 * @param count
+	 *            number of entries to be written
+	 * @return the buffer to go on with, a larger one if bb cannot hold all
+	 *         the entries
+	 */
+	public static ByteBuffer begin(ByteBuffer bb, int count) {
+		// 1+5 for the header, 6+10 at most for each entry.
+		int maxLength = 6 + count * 16;
+		if (bb == null || bb.capacity() < maxLength) {
+			bb = ByteBuffer.allocate(maxLength);
+		}
+		bb.clear();
+		bb.put(VERSION);
+		putVarint(bb, count);
+		return bb;
+	}
+
+	/**
+	 * Clear the buffer and write the sequence header and the header of a
+	 * binary vector.
+	 *
+	 * @param bb
+	 *            the buffer to reuse
+	 * @param count
+	 *            number of entries to be written
+	 * @param sequence
+	 *            sequence number of the update, not negative
+	 * @return the buffer to go on with
+	 */
+	public static ByteBuffer begin(ByteBuffer bb, int count, int sequence) {
+		int maxLength = SEQUENCE_HEADER_LENGTH + 6 + count * 16;
+		if (bb == null || bb.capacity() < maxLength) {
+			bb = ByteBuffer.allocate(maxLength);
+		}
+		bb.clear();
+		bb.put(SEQUENCED);
+		bb.putInt(sequence);
+		bb.put(VERSION);
+		putVarint(bb, count);
+		return bb;
+	}
+
+	/**
+	 * Get the sequence number of a vector.
+	 *
+	 * @param payload
+	 * @return sequence number; -1 if the vector has no sequence header
+	 */
+	public static int sequence(byte[] payload) {
+		if (payload == null || payload.length < SEQUENCE_HEADER_LENGTH
+				|| payload[0] != SEQUENCED) {
+			return -1;
+		}
+		return ByteBuffer.wrap(payload, 1, 4).getInt();
+	}
+
+	/**
+	 * Append one entry. The buffer must be prepared by begin().
+	 *
+	 * @param bb
+	 * @param packedAddress
+	 *            destination address packed by pack()
+	 * @param cost
+	 */
+	public static void putEntry(ByteBuffer bb, long packedAddress, double cost) {
+		bb.putInt((int) (packedAddress >> 16));
+		bb.putShort((short) packedAddress);
+		if (cost >= PA2Util.INFINTE_COST || cost > MAX_COST) {
+			putVarint(bb, 0);
+		} else {
+			putVarint(bb, Math.round(Math.max(cost, 0) * COST_SCALE) + 1);
+		}
+	}
+
+	/**
+	 * Split an encoded vector into payloads of at most maxLength bytes.
+	 *
+	 * @param payload
+	 *            the encoded vector
+	 * @param maxLength
+	 *            the largest payload a packet can carry
+	 * @param vectorId
+	 *            id shared by all the fragments of this vector
+	 * @return the payload itself if it fits, otherwise its fragments in order
+	 */
+	public static ArrayList<byte[]> fragment(byte[] payload, int maxLength,
+			int vectorId) {
+		ArrayList<byte[]> fragments = new ArrayList<byte[]>();
+		if (payload.length <= maxLength) {
+			fragments.add(payload);
+			return fragments;
+		}
+		int sliceLength = maxLength - FRAGMENT_HEADER_LENGTH;
+		int count = (payload.length + sliceLength - 1) / sliceLength;
+		for (int i = 0; i < count; i++) {
+			int from = i * sliceLength;
+			int length = Math.min(sliceLength, payload.length - from);
+			ByteBuffer bb = ByteBuffer.allocate(FRAGMENT_HEADER_LENGTH
+					+ length);
+			bb.put(FRAGMENT);
+			bb.putInt(vectorId);
+			bb.putShort((short) i);
+			bb.putShort((short) count);
+			bb.put(payload, from, length);
+			fragments.add(bb.array());
+		}
+		return fragments;
+	}
+
+	/**
+	 * Decode a vector in either the binary or the legacy text form. The
+	 * sequence header, if any, is skipped.
+	 *
+	 * @param payload
+	 * @param handler
+	 *            receiver of every entry
+	 * @throws IllegalArgumentException
+	 *             if the payload cannot be parsed.
+	 */
+	public static void decode(byte[] payload, EntryHandler handler) {
+		if (payload == null || payload.length == 0) {
+			return;
+		}
+		int offset = 0;
+		if (payload[0] == SEQUENCED) {
+			offset = SEQUENCE_HEADER_LENGTH;
+			if (payload.length <= offset) {
+				throw new IllegalArgumentException("Truncated vector.");
+			}
+		}
+		if (payload[offset] == VERSION) {
+			decodeBinary(payload, offset, handler);
+		} else if (payload[offset] >= '0' && payload[offset] <= '9') {
+			decodeText(payload, offset, handler);
+		} else {
+			throw new IllegalArgumentException("Unknown vector version "
+					+ payload[offset]);
+		}
+	}
+
+	private static void decodeBinary(byte[] payload, int offset,
+			EntryHandler handler) {
+		ByteBuffer bb = ByteBuffer.wrap(payload, offset, payload.length
+				- offset);
+		try {
+			bb.get();
+			long count = getVarint(bb);
+			for (long i = 0; i < count; i++) {
+				long ip = bb.getInt() & 0xFFFFFFFFL;
+				int port = bb.getShort() & 0xFFFF;
+				long fixed = getVarint(bb);
+				double cost = fixed == 0 ? PA2Util.INFINTE_COST
+						: (fixed - 1) / COST_SCALE;
+				handler.onEntry(unpack((ip << 16) | port), cost);
+			}
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Truncated vector.");
+		}
+	}
+
+	private static void decodeText(byte[] payload, int offset,
+			EntryHandler handler) {
+		//payload: 192.168.0.8:1111=323;192.168.0.8:2323=INF
+		String[] tmp = new String(payload, offset, payload.length - offset)
+				.split(";");
+		for (int i = 0; i < tmp.length; i++) {
+			String[] item = tmp[i].split("=");
+			if (item.length != 2) {
+				throw new IllegalArgumentException("Bad vector entry "
+						+ tmp[i]);
+			}
+			if (item[1].startsWith(PA2Util.INFINITY_TAG)) {
+				handler.onEntry(item[0], PA2Util.INFINTE_COST);
+			} else {
+				handler.onEntry(item[0], Double.valueOf(item[1]));
+			}
+		}
+	}
+
+	private static void putVarint(ByteBuffer bb, long value) {
+		while ((value & ~0x7FL) != 0) {
+			bb.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		bb.put((byte) value);
+	}
+
+	private static long getVarint(ByteBuffer bb) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = bb.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Varint too long.");
+	}
+}
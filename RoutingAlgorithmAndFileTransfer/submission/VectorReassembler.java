@@ -0,0 +1,132 @@
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Reassembly of the distance vectors that are split into fragments by
+ * VectorCodec.fragment(). Every neighbor has at most one vector under
+ * reassembly; a fragment of a newer vector drops the older one, since only
+ * the latest vector of a neighbor matters.
+ *
+ * A vector whose fragments do not all arrive within REASSEMBLY_TIMEOUT is
+ * dropped. The fragments buffered for all the neighbors are limited to
+ * MAX_REASSEMBLY_BYTES, and a vector to MAX_FRAGMENTS fragments.
+ *
+ * Not thread safe. Used under the table lock of the BFKernel.
+ *
+ * @author Chao Chen
+ * @version 1.0
+ */
+public class VectorReassembler {
+
+	/**
+	 * The fragments of one vector received so far.
+	 */
+	private static class Partial {
+		int vectorId;
+		byte[][] slices;
+		int received = 0;
+		int bytes = 0;
+		long startTime;
+	}
+
+	/**
+	 * <neighborAddress, vector under reassembly>
+	 */
+	private HashMap<String, Partial> partials = new HashMap<String, Partial>();
+
+	private int bufferedBytes = 0;
+
+	/**
+	 * Add a fragment.
+	 *
+	 * @param sender
+	 *            address of the neighbor
+	 * @param fragment
+	 *            payload starting with VectorCodec.FRAGMENT
+	 * @param now
+	 *            current time in million second
+	 * @return the whole encoded vector if this fragment completes it; null
+	 *         otherwise
+	 */
+	public byte[] add(String sender, byte[] fragment, long now) {
+		dropExpired(now);
+		if (fragment.length <= VectorCodec.FRAGMENT_HEADER_LENGTH) {
+			return null;
+		}
+		ByteBuffer bb = ByteBuffer.wrap(fragment);
+		bb.get();
+		int vectorId = bb.getInt();
+		int index = bb.getShort() & 0xFFFF;
+		int count = bb.getShort() & 0xFFFF;
+		if (count == 0 || count > PA2Util.MAX_FRAGMENTS || index >= count) {
+			return null;
+		}
+
+		Partial partial = partials.get(sender);
+		if (partial != null
+				&& (partial.vectorId != vectorId || partial.slices.length != count)) {
+			if (partial.vectorId - vectorId > 0) {
+				// a late fragment of an older vector.
+				return null;
+			}
+			drop(sender);
+			partial = null;
+		}
+		if (partial == null) {
+			partial = new Partial();
+			partial.vectorId = vectorId;
+			partial.slices = new byte[count][];
+			partial.startTime = now;
+			partials.put(sender, partial);
+		}
+		if (partial.slices[index] != null) {
+			// duplicated fragment.
+			return null;
+		}
+		int length = fragment.length - VectorCodec.FRAGMENT_HEADER_LENGTH;
+		if (bufferedBytes + length > PA2Util.MAX_REASSEMBLY_BYTES) {
+			drop(sender);
+			return null;
+		}
+		byte[] slice = new byte[length];
+		bb.get(slice);
+		partial.slices[index] = slice;
+		partial.received++;
+		partial.bytes += length;
+		bufferedBytes += length;
+		if (partial.received < count) {
+			return null;
+		}
+
+		drop(sender);
+		ByteBuffer whole = ByteBuffer.allocate(partial.bytes);
+		for (byte[] s : partial.slices) {
+			whole.put(s);
+		}
+		return whole.array();
+	}
+
+	/**
+	 * Drop the vector under reassembly from a neighbor.
+	 *
+	 * @param sender
+	 */
+	public void drop(String sender) {
+		Partial partial = partials.remove(sender);
+		if (partial != null) {
+			bufferedBytes -= partial.bytes;
+		}
+	}
+
+	private void dropExpired(long now) {
+		Iterator<String> it = partials.keySet().iterator();
+		while (it.hasNext()) {
+			Partial partial = partials.get(it.next());
+			if (now - partial.startTime > PA2Util.REASSEMBLY_TIMEOUT) {
+				bufferedBytes -= partial.bytes;
+				it.remove();
+			}
+		}
+	}
+}